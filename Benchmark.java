@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import smg.interpreter.CompiledScript;
+import smg.interpreter.Interpreter;
+import smg.interpreter.Parser;
+import smg.interpreter.ScriptCache;
+import smg.interpreter.Tokeniser;
+
+/*
+ * Rough throughput and allocation measurements for hot paths of the 
+ * Interpreter. Run it from the project directory after compiling alongside 
+ * Main, for example:
+ *   java -cp out Benchmark [name filter]
+ *
+ * The project is built by compiling its sources with javac, without Maven or
+ * Gradle, so there is nothing to fetch JMH and run its annotation processor.
+ * This harness does the parts of a JMH run that matter here instead: warm up
+ * rounds before measuring, fixed time rounds, allocation per operation from
+ * the thread's allocation counter (as -prof gc reports it) and results that
+ * are consumed, like a Blackhole would, so the JIT cannot drop the work. It
+ * runs in a single JVM, so compare numbers from the same machine and run.
+ */
+public class Benchmark {
+    private static final int WARMUP_ROUNDS = 5, ROUNDS = 5;
+    private static final long ROUND_NANOS = 1_000_000_000L;
+
+    // Allocations are counted per thread, which only HotSpot based JVMs offer.
+    private static final com.sun.management.ThreadMXBean threads = 
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static String filter = "";
+
+    // Every result is folded into this, so that no task is dead code.
+    private static volatile int sink;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) filter = args[0];
+        System.out.println(String.format("%-28s %15s %12s %10s", 
+            "benchmark", "ops/s", "bytes/op", "MB/s"));
+
+        // The front end, on the test script.
+        final String code = String.join("\n", 
+            Files.readAllLines(Paths.get("./code.smg"))
+        );
+        measure("tokenise code.smg", 
+            () -> new Tokeniser(code + '\0').allTokens());
+        measure("parse code.smg", () -> Parser.parse(code));
+
+        final Interpreter add = new Interpreter(
+            "a + b", Map.of("a", 1L, "b", 2L)
+        );
+        measure("long a + b", () -> add.run());
+
+        final String fibonacci = String.join("\n",
+            "fibonacci = function (n) {",
+            "    let a = 0; let b = 1",
+            "    for (let i = 0; i < n; i += 1) {",
+            "        let temp = a + b; a = b; b = temp",
+            "    }",
+            "    return a",
+            "}",
+            "fibonacci(1000)"
+        );
+        // Scripts are run repeatedly, so they must not redefine globals.
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("fibonacci", null);
+        final Interpreter walked = uncached(() -> 
+            new Interpreter(fibonacci, vars)
+        );
+        final Interpreter compiled = new Interpreter(
+            CompiledScript.from(fibonacci), vars
+        );
+        measure("fibonacci", () -> walked.run());
+        measure("fibonacci (compiled)", () -> compiled.run());
+
+        // Parsing once and running many times versus parsing on every run.
+        final String script = "let total = 0\n" + 
+            "for (item in items) { total += item.price * item.quantity }";
+        final Map<String, Object> order = Map.of("items", List.of(
+            Map.of("price", 2.5, "quantity", 4L), 
+            Map.of("price", 10.0, "quantity", 1L)
+        ));
+        final CompiledScript compiledScript = CompiledScript.from(script);
+        measure("order (parse each run)", 
+            () -> uncached(() -> new Interpreter(script, order)).run());
+        measure("order (script cache)", 
+            () -> new Interpreter(script, order).run());
+        measure("order (compiled script)", 
+            () -> compiledScript.run(order));
+
+        // Scripts in a scope of their own can be rerun by one interpreter.
+        final Interpreter lists = new Interpreter(String.join("\n", "{",
+            "let xs = []",
+            "for (let i = 0; i < 100; i += 1) { xs = xs + [i] }",
+            "let counts = {even: 0, odd: 0}",
+            "for (x in xs) {",
+            "    if (x % 2 == 0) { counts.even += x } else { counts.odd += x }",
+            "}",
+            "[xs.size, counts.even, counts.odd]",
+            "}"
+        ));
+        measure("lists and maps", () -> lists.run());
+
+        // Church numerals, as in code.smg, taking zero before the successor.
+        final Interpreter church = new Interpreter(String.join("\n", "{",
+            "let zero = λ (z) λ (s) z",
+            "let succ = λ (n) λ (z) λ (s) s (n (z) (s))",
+            "let add = λ (m) λ (n) λ (z) λ (s) m (n (z) (s)) (s)",
+            "let mult = λ (m) λ (n) m (zero) (add (n))",
+            "let view = λ (n) n (0) (λ (x) x + 1)",
+            "let three = succ (succ (succ (zero)))",
+            "let four = succ (three)",
+            "view (mult (four) (add (four) (three)))",
+            "}"
+        ));
+        measure("church numerals", () -> church.run());
+
+        // Calls into Java through integrateClasses.
+        final Interpreter interop = new Interpreter(String.join("\n", "{",
+            "let total = 0",
+            "for (let i = 0; i < 100; i += 1) { total += Math.max(i, 50) }",
+            "total",
+            "}"
+        ));
+        interop.integrateClasses(Math.class);
+        measure("interop Math.max x100", () -> interop.run());
+    }
+
+    // Creates interpreters with their own copy of the program, bypassing the
+    // script cache.
+    private static Interpreter uncached(Supplier<Interpreter> create) {
+        final ScriptCache cache = ScriptCache.shared();
+        final int capacity = cache.capacity();
+        cache.setCapacity(0);
+        try { return create.get(); }
+        finally { cache.setCapacity(capacity); }
+    }
+
+    // Runs the given task repeatedly for a fixed amount of time per round and
+    // reports the best rate seen after warming up, along with how much memory
+    // was allocated per operation and per second in that round.
+    private static void measure(String name, Supplier<?> task) {
+        if (!name.contains(filter)) return;
+
+        final long thread = Thread.currentThread().getId();
+        double best = 0, bytesPerOp = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            final long bytes = threads.getThreadAllocatedBytes(thread);
+            final long start = System.nanoTime();
+            long ops = 0, elapsed;
+            int results = 0;
+            do {
+                results ^= System.identityHashCode(task.get());
+                ops += 1;
+            }
+            while ((elapsed = System.nanoTime() - start) < ROUND_NANOS);
+            sink ^= results;
+
+            final double rate = ops * 1e9 / elapsed;
+            if (round >= WARMUP_ROUNDS && rate > best) {
+                best = rate;
+                final long allocated = 
+                    threads.getThreadAllocatedBytes(thread) - bytes;
+                bytesPerOp = (double) allocated / ops;
+            }
+        }
+        System.out.println(String.format("%-28s %,15.0f %,12.0f %,10.1f", 
+            name, best, bytesPerOp, best * bytesPerOp / 1e6));
+    }
+}
@@ -0,0 +1,133 @@
+package smg.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs one compiled script over many sets of variables at once, spread over
+ * the threads of a fork-join pool.
+ * <pre>
+ * final BatchRunner runner = new BatchRunner(script)
+ *     .setup(intr -&gt; intr.setTimeout(Duration.ofSeconds(1)));
+ * for (BatchRunner.Result result : runner.run(claims)) {
+ *     if (result.failed()) log(result.error());
+ *     else save(result.value());
+ * }
+ * </pre>
+ * Results come back in the order of their inputs. A run that throws does not
+ * stop the others; its exception is kept in its result instead. Interpreters
+ * are taken from an InterpreterPool, so each thread keeps reusing the same
+ * few of them.
+ * <p>
+ * Every run has its own global scope. Scripts only share data through the
+ * variables they are given, which they should not change.
+ */
+public final class BatchRunner {
+
+    // The outcome of running the script with one set of variables
+    public static final class Result {
+        private final Object value;
+        private final Throwable error;
+
+        private Result(Object v, Throwable e) { value = v; error = e; }
+
+        public boolean failed() { return error != null; }
+        public Object value() { return value; }
+        public Throwable error() { return error; }
+
+        public String toString() {
+            return failed() ? "error: " + error.getMessage() :
+                String.valueOf(value);
+        }
+    }
+
+    private final ForkJoinPool threads;
+    private final InterpreterPool interpreters;
+    private Consumer<Interpreter> setup = intr -> {};
+
+    public BatchRunner(CompiledScript script) {
+        this(script, ForkJoinPool.commonPool());
+    }
+
+    public BatchRunner(CompiledScript script, ForkJoinPool threads) {
+        this.threads = threads;
+        interpreters = new InterpreterPool(
+            script, threads.getParallelism() * 2
+        );
+    }
+
+    // Called on each interpreter before every run, to set limits and the like.
+    public BatchRunner setup(Consumer<Interpreter> s) {
+        setup = s;
+        return this;
+    }
+
+    public List<Result> run(Stream<? extends Map<String, Object>> inputs) {
+        return run(inputs.collect(Collectors.toList()));
+    }
+
+    public List<Result> run(List<? extends Map<String, Object>> inputs) {
+        final Result[] results = new Result[inputs.size()];
+        if (results.length == 0) return Collections.emptyList();
+        final List<? extends Map<String, Object>> items =
+            inputs instanceof RandomAccess ? inputs : new ArrayList<>(inputs);
+
+        // Runs are split up into a few tasks per thread, so that threads that
+        // finish early can take over the work of others.
+        final int tasks = threads.getParallelism() * 8;
+        final int size = Math.max(1, (results.length + tasks - 1) / tasks);
+        threads.invoke(new Runs(items, results, 0, results.length, size));
+        return Arrays.asList(results);
+    }
+
+    private Result run(Map<String, Object> vars) {
+        final Interpreter intr = interpreters.acquire(vars);
+        try {
+            setup.accept(intr);
+            return new Result(intr.run(), null);
+        }
+        catch (RuntimeException | StackOverflowError e) {
+            return new Result(null, e);
+        }
+        finally { interpreters.release(intr); }
+    }
+
+    // Runs the inputs in a range, splitting it in half until it is small.
+    private final class Runs extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final List<? extends Map<String, Object>> inputs;
+        final Result[] results;
+        final int from, to, size;
+
+        Runs(
+            List<? extends Map<String, Object>> i, Result[] r,
+            int f, int t, int s
+        ) {
+            inputs = i; results = r; from = f; to = t; size = s;
+        }
+
+        protected void compute() {
+            if (to - from <= size) {
+                for (int i = from; i < to; i += 1)
+                    results[i] = run(inputs.get(i));
+                return;
+            }
+
+            final int middle = (from + to) >>> 1;
+            invokeAll(
+                new Runs(inputs, results, from, middle, size),
+                new Runs(inputs, results, middle, to, size)
+            );
+        }
+    }
+}
@@ -2,9 +2,7 @@ package smg.interpreter;
 
 import static smg.interpreter.Types.*;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -22,72 +20,86 @@ public class Calculations {
             }
             default:
         }
-        throw intr.error(String.format(
+        throw intr.error(
             "Invalid unary operation '%s' on value of type %s", 
             op, javaType(value)
-        ));
+        );
     }
 
     static Object calcAssign(
-        Interpreter intr, AssignOp op, Object lhs, Object rhs
+        Interpreter intr, NodeStmt.Assign assign, Object lhs, Object rhs
     ) {
-        switch (op) {
-            case AssignEqual: return rhs;
-            case AddEqual: 
-                return calcBinary(intr, BinaryOp.Add, lhs, rhs);
-            case SubEqual: 
-                return calcBinary(intr, BinaryOp.Subtract, lhs, rhs);
-            case MultiplyEqual: 
-                return calcBinary(intr, BinaryOp.Multiply, lhs, rhs);
-            case DivideEqual: 
-                return calcBinary(intr, BinaryOp.Divide, lhs, rhs);
-            case ModEqual: 
-                return calcBinary(intr, BinaryOp.Modulo, lhs, rhs);
-            case AndEqual: 
-                return calcBinary(intr, BinaryOp.And, lhs, rhs);
-            case OrEqual: 
-                return calcBinary(intr, BinaryOp.Or, lhs, rhs);
-        }
-        throw intr.error("Unsupported assignment operation: %s", op);
+        if (assign.binary == null) return rhs;
+        return calcBinary(intr, assign.binary, lhs, rhs);
     }
 
     static Object calcBinaryDouble(
         Interpreter intr, BinaryOp op, double lhs, double rhs
     ) {
         switch (op) {            
-            case Exponent:          return Math.pow(lhs, rhs);
-            case Multiply:          return lhs * rhs;
-            case Divide:            return lhs / rhs;
-            case Modulo:            return lhs % rhs;
-            case Add:               return lhs + rhs;
-            case Subtract:          return lhs - rhs;
             case Greater:           return lhs > rhs;
             case GreaterEqual:      return lhs >= rhs;
             case Less:              return lhs < rhs;
             case LessEqual:         return lhs <= rhs;
             case NotEqual:          return lhs != rhs;
             case Equal:             return lhs == rhs;
-            default:
+            default:                return calcDouble(intr, op, lhs, rhs);
         }
-        throw intr.error(String.format("Invalid double operation %s", op));
     }
 
     static Object calcBinaryLong(
         Interpreter intr, BinaryOp op, long lhs, long rhs
     ) {
         switch (op) {
-            case Exponent:          return (long) Math.pow(lhs, rhs);
-            case Multiply:          return lhs * rhs;
-            case Divide:            return lhs / rhs;
-            case Modulo:            return lhs % rhs;
-            case Add:               return lhs + rhs;
-            case Subtract:          return lhs - rhs;
             case Greater:           return lhs > rhs;
             case GreaterEqual:      return lhs >= rhs;
             case Less:              return lhs < rhs;
             case LessEqual:         return lhs <= rhs;
             case NotEqual:          return lhs != rhs;
             case Equal:             return lhs == rhs;
+            default:                return calcLong(intr, op, lhs, rhs);
+        }
+    }
+
+    // Arithmetic on unboxed numbers, for the operators whose results are of
+    // the same type as their operands. Used by compiled code to keep numbers
+    // unboxed from one operation to the next.
+    static boolean arithmetic(BinaryOp op, boolean longs) {
+        switch (op) {
+            case Exponent: case Multiply: case Divide: case Modulo: 
+            case Add: case Subtract: 
+                return true;
+            case BitAnd: case BitOr: case BitXor: 
+            case ShiftLeft: case ShiftRight: 
+                return longs;
+            default: 
+                return false;
+        }
+    }
+
+    static double calcDouble(
+        Interpreter intr, BinaryOp op, double lhs, double rhs
+    ) {
+        switch (op) {            
+            case Exponent:          return Math.pow(lhs, rhs);
+            case Multiply:          return lhs * rhs;
+            case Divide:            return lhs / rhs;
+            case Modulo:            return lhs % rhs;
+            case Add:               return lhs + rhs;
+            case Subtract:          return lhs - rhs;
+            default:
+        }
+        throw intr.error("Invalid double operation %s", op);
+    }
+
+    static long calcLong(Interpreter intr, BinaryOp op, long lhs, long rhs) {
+        switch (op) {
+            case Exponent:          return (long) Math.pow(lhs, rhs);
+            case Multiply:          return lhs * rhs;
+            case Divide:            return lhs / rhs;
+            case Modulo:            return lhs % rhs;
+            case Add:               return lhs + rhs;
+            case Subtract:          return lhs - rhs;
             case BitAnd:            return lhs & rhs;
             case BitOr:             return lhs | rhs;
             case BitXor:            return lhs ^ rhs;
@@ -95,7 +107,61 @@ public class Calculations {
             case ShiftRight:        return lhs >> rhs;
             default:
         }
-        throw intr.error(String.format("Invalid long operation %s", op));
+        throw intr.error("Invalid long operation %s", op);
+    }
+
+    // Evaluates a binary expression node from its operands, taking the fast 
+    // path for the operand types it has seen before if there is one. Logical 
+    // operators are only ever evaluated this way for assignments, as they 
+    // would otherwise short-circuit.
+    static Object calcBinary(
+        Interpreter intr, NodeExpr.Binary node, Object lhs, Object rhs
+    ) {
+        final BinaryOp op = node.op;
+        switch (node.spec) {
+            case LongLong:
+                if (lhs instanceof Long && rhs instanceof Long) 
+                    return calcBinaryLong(intr, op, (Long) lhs, (Long) rhs);
+                break;
+
+            case DoubleDouble:
+                if (lhs instanceof Double && rhs instanceof Double) 
+                    return calcBinaryDouble(
+                        intr, op, (Double) lhs, (Double) rhs
+                    );
+                break;
+
+            case StringConcat:
+                if ((lhs instanceof String || lhs instanceof Rope) && 
+                    rhs != null) 
+                    return Rope.concat((CharSequence) lhs, String.valueOf(rhs));
+                break;
+
+            case Uninitialised:
+                node.spec = specialise(op, lhs, rhs);
+                return calcBinary(intr, node, lhs, rhs);
+
+            case Generic:
+                return calcBinary(intr, op, lhs, rhs);
+        }
+
+        // The operands no longer match what the node was specialised for.
+        node.spec = BinarySpec.Generic;
+        return calcBinary(intr, op, lhs, rhs);
+    }
+
+    // The fast paths must give exactly the same results as the generic one.
+    private static BinarySpec specialise(BinaryOp op, Object lhs, Object rhs) {
+        if (op == BinaryOp.And || op == BinaryOp.Or) 
+            return BinarySpec.Generic;
+        else if (lhs instanceof Long && rhs instanceof Long) 
+            return BinarySpec.LongLong;
+        else if (lhs instanceof Double && rhs instanceof Double) 
+            return BinarySpec.DoubleDouble;
+        else if (op == BinaryOp.Add && rhs != null && 
+            (lhs instanceof String || lhs instanceof Rope)) 
+            return BinarySpec.StringConcat;
+        return BinarySpec.Generic;
     }
 
     // Very useful rsource: 
@@ -129,10 +195,12 @@ public class Calculations {
         // longer be lazily evaluated (yet).
         if (of(rhs, NodeTerm.class)) rhs = intr.runTerm((NodeTerm) rhs);
 
-        final String ltype = javaType(lhs), rtype = javaType(rhs);
-        final RuntimeException invalidExpr = intr.error(
-            "Invalid binary expression: (%s) %s (%s)", ltype, op, rtype
-        );
+        // Ropes are only appended to by concatenation. Every other operation
+        // works on them as strings.
+        if (op == BinaryOp.Add && of(lhs, Rope.class) && rhs != null)
+            return Rope.concat((Rope) lhs, castValue(intr, "string", rhs));
+        lhs = flat(lhs);
+        rhs = flat(rhs);
 
         // 2. The operands are checked for nullness. If either of them are null,
         //    permit only the equality operations.
@@ -141,7 +209,7 @@ public class Calculations {
                 case Equal: return rhs == lhs;
                 case NotEqual: return rhs != lhs;
 
-                default: throw invalidExpr;
+                default: throw invalidExpr(intr, op, lhs, rhs);
             }
         }
         
@@ -160,13 +228,13 @@ public class Calculations {
         if (ofAny(lhs, String.class)) {
             switch (op) {
                 case Add: 
-                    return ((String) lhs).concat(
-                        castValue(intr, "string", rhs)
+                    return Rope.concat(
+                        (String) lhs, castValue(intr, "string", rhs)
                     );
                 case Modulo: 
                     return String.format((String) lhs, rhs);
                 
-                default: throw invalidExpr;
+                default: throw invalidExpr(intr, op, lhs, rhs);
             }
         }
         
@@ -174,27 +242,28 @@ public class Calculations {
         //    the RHS is another list, all of its elements are added to the 
         //    former. Otherwise, the RHS is added as a single element. This 
         //    operation only constructs a new list and does not modify the 
-        //    operands.    
+        //    operands. The new list shares what it can with a PersistentList
+        //    LHS; any other list is copied into one first.
         if (ofAny(lhs, List.class)) {
-            if (op != BinaryOp.Add) throw invalidExpr;
+            if (op != BinaryOp.Add) throw invalidExpr(intr, op, lhs, rhs);
             
-            final List nlhs = new ArrayList<>((List) lhs);
-            if (ofAny(rhs, List.class)) nlhs.addAll((List) rhs);
-            else nlhs.add(rhs);
-
-            return nlhs;
+            final PersistentList plhs = lhs instanceof PersistentList ?
+                (PersistentList) lhs : new PersistentList((List) lhs);
+            return intr.own(plhs.plus(rhs));
         }
         
         // 6. If the LHS is a Map, allow only the concatenation operation. The
         //    RHS must be another map. The result is all the keys and values
         //    from the second map are added to the former. In the case that both
         //    maps have different values for the same key, the second map wins.
+        //    Like lists, the new map shares what it can with the LHS.
         else if (ofAny(lhs, Map.class)) {
-            if (op != BinaryOp.Add || !ofAny(rhs, Map.class)) throw invalidExpr;
+            if (op != BinaryOp.Add || !ofAny(rhs, Map.class)) 
+                throw invalidExpr(intr, op, lhs, rhs);
 
-            final Map nlhs = new HashMap<>((Map) lhs);
-            nlhs.putAll((Map) rhs);
-            return nlhs;
+            final PersistentMap plhs = lhs instanceof PersistentMap ?
+                (PersistentMap) lhs : new PersistentMap((Map) lhs);
+            return intr.own(plhs.plus((Map) rhs));
         }
 
         // 7. If both operands are Dates, allow only comparison operations. If
@@ -208,7 +277,7 @@ public class Calculations {
                 case GreaterEqual: return !dlhs.before(drhs);
                 case Less: return dlhs.before(drhs);
                 case LessEqual: return !dlhs.after(drhs);
-                default: throw invalidExpr;
+                default: throw invalidExpr(intr, op, lhs, rhs);
             }
         }
         
@@ -237,6 +306,17 @@ public class Calculations {
         }
 
         // 10. If none of the above apply, throw an error.
-        throw invalidExpr;
+        throw invalidExpr(intr, op, lhs, rhs);
+    }
+
+    // Errors are only built once they are about to be thrown. Building them up
+    // front costs far more than the operations themselves.
+    private static SmgException invalidExpr(
+        Interpreter intr, BinaryOp op, Object lhs, Object rhs
+    ) {
+        return intr.error(
+            "Invalid binary expression: (%s) %s (%s)", 
+            javaType(lhs), op, javaType(rhs)
+        );
     }
 }
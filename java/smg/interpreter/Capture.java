@@ -13,17 +13,24 @@ public class Capture {
     public final Map<String, Object> variables;
     private final Object function;
 
+    // Captures every variable in the given scopes.
     public Capture(List<Map<String, Object>> stack, Object f) {
-        variables = new HashMap<>();
+        this(new HashMap<>(), f);
         for (Map<String, Object> map : stack) variables.putAll(map);
+    }
 
+    // Captures exactly the given variables. The map is kept as it is.
+    public Capture(Map<String, Object> vars, Object f) {
+        variables = vars;
         if ((function = f) == null) throw new IllegalArgumentException(
             "Supplying null for function is not allowed"
         );
     }
 
     public Object invoke(Interpreter intr, Object... args) {
-        if (function instanceof F) return ((F) function).apply(args);
+        if (function instanceof Body) 
+            return ((Body) function).apply(intr, args);
+        else if (function instanceof F) return ((F) function).apply(args);
         else if (function instanceof F0) ((F0) function).apply(args);
         else throw intr.error(
             "Unsupported function type: " + javaType(function)
@@ -32,6 +39,12 @@ public class Capture {
         return null;
     }
 
+    // Functions defined by scripts, which run in whichever interpreter calls
+    // them. That is not always the one they were defined in, as with the
+    // workers of parallel loops.
+    @FunctionalInterface
+    static interface Body { Object apply(Interpreter intr, Object... args); }
+
     @FunctionalInterface
     public static interface F { public Object apply(Object... args); }
     
@@ -0,0 +1,60 @@
+package smg.interpreter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A script that has been parsed, resolved and compiled once and can then be
+ * run any number of times, by any number of threads at once.
+ * <p>
+ * A compiled script holds no execution state of its own. Each run happens in
+ * an Interpreter created from it, which only needs to set up its own scopes.
+ * Interpreters are not thread safe themselves, so every thread should create
+ * its own.
+ * <pre>
+ * final CompiledScript script = CompiledScript.from(code);
+ * ...
+ * final Object result = script.run(Map.of("claim", claim));
+ * </pre>
+ */
+public final class CompiledScript {
+
+    // The program is resolved (and usually compiled) before the constructor 
+    // returns. Anything written to it afterwards is either guarded (see
+    // Compiler.compile()) or a cache whose every value is valid for any thread.
+    final NodeProgram program;
+
+    private CompiledScript(NodeProgram p) { program = p; }
+
+    public static CompiledScript from(String code) {
+        return new CompiledScript(Compiler.compile(parse(code)));
+    }
+
+    // Parses, folds and resolves a script without compiling it. Used by
+    // ScriptCache so that scripts run through new Interpreter(code) behave as
+    // before.
+    static CompiledScript parsed(String code) {
+        return new CompiledScript(parse(code));
+    }
+
+    private static NodeProgram parse(String code) {
+        return Resolver.resolve(Folder.fold(new Parser(code).parse()));
+    }
+
+    // Creates a new execution context for this script.
+    public Interpreter interpreter() { return interpreter(new HashMap<>()); }
+    public Interpreter interpreter(Map<String, Object> vars) {
+        return new Interpreter(this, vars);
+    }
+    public Interpreter interpreter(SharedGlobals globals) {
+        return new Interpreter(this, new HashMap<>(), globals);
+    }
+
+    // Runs the script once in a fresh execution context.
+    public Object run() { return interpreter().run(); }
+    public Object run(Map<String, Object> vars) {
+        return interpreter(vars).run();
+    }
+
+    public String toString() { return String.valueOf(program); }
+}
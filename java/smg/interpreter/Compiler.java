@@ -0,0 +1,607 @@
+package smg.interpreter;
+
+import static smg.interpreter.Calculations.*;
+import static smg.interpreter.Types.*;
+
+import smg.interpreter.Interpreter.JumpOp;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+
+/**
+ * The compiler turns a program into trees of closures. Everything that the 
+ * tree-walker would work out every time a node is run, like which kind of node
+ * it is, which operator it applies, or where a variable lives, is decided once
+ * here and baked into the closures. This leaves the JIT with plain Java calls
+ * instead of double dispatch through the visitors of the Interpreter.
+ * <p>
+ * Compiled code is stored on the nodes themselves and is picked up by the 
+ * Interpreter whenever it runs one of them, so compiled and interpreted code 
+ * mix freely and share all of their state. Constructs that are not supported,
+ * like try blocks, function definitions and assignments into lists and maps,
+ * are still run by the tree-walker. Compiled closures use the same helpers as
+ * the tree-walker, so the results and errors are identical.
+ * <p>
+ * Arithmetic on longs and doubles is done without boxing once the nodes doing
+ * it have specialised on those types (see Calculations.calcBinary()). Numbers
+ * then stay unboxed from one operation to the next, and assignments to local
+ * variables keep them unboxed in their frames, so loop counters and 
+ * accumulators are never boxed at all.
+ */
+class Compiler {
+
+    // A piece of compiled code. Code that can produce a number without boxing
+    // it at this point returns Frame.LONG or Frame.DOUBLE from unboxed(), and 
+    // should then be run with runLong() or runDouble(). Any other code can be
+    // run with those as well, and has its result unboxed. Either way, a result
+    // that turns out to be of another type is thrown back as Unexpected, once
+    // evaluated.
+    @FunctionalInterface
+    interface Code { 
+        Object run(Interpreter intr); 
+
+        default Object unboxed(Interpreter intr) { return null; }
+        default long runLong(Interpreter intr) { return asLong(run(intr)); }
+        default double runDouble(Interpreter intr) { 
+            return asDouble(run(intr)); 
+        }
+    }
+
+    static final class Unexpected extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final Object value;
+        Unexpected(Object v) { super(null, null, false, false); value = v; }
+    }
+
+    private static long asLong(Object value) {
+        if (value instanceof Long) return (Long) value;
+        throw new Unexpected(value);
+    }
+
+    private static double asDouble(Object value) {
+        if (value instanceof Double) return (Double) value;
+        throw new Unexpected(value);
+    }
+
+    // Runs code for a value that is about to be stored and makes it the last
+    // result. Numbers the code can produce unboxed are left in intr.lastBits,
+    // and the kind of number is returned in place of the value.
+    private static Object result(Interpreter intr, Code code) {
+        final Object unboxed = code.unboxed(intr);
+        try {
+            if (unboxed == Frame.LONG) 
+                intr.lastBits = code.runLong(intr);
+            else if (unboxed == Frame.DOUBLE) {
+                final double value = code.runDouble(intr);
+                intr.lastBits = Double.doubleToRawLongBits(value);
+            }
+            else return intr.lastResult = code.run(intr);
+            return intr.lastResult = unboxed;
+        }
+        catch (Unexpected e) { return intr.lastResult = e.value; }
+    }
+
+    private static final Code NULL = intr -> null;
+
+    private Compiler() {}
+
+    static NodeProgram compile(NodeProgram program) {
+        if (program == null || program.compiled) return program;
+
+        synchronized (program) {
+            if (program.compiled) return program;
+
+            final Compiler compiler = new Compiler();
+            for (NodeStmt stmt : program.stmts) compiler.compileStmt(stmt);
+            program.compiled = true;
+        }
+        return program;
+    }
+
+    // MARK: Statements
+    // Compiles a statement and returns code that runs it. Statements that are
+    // not supported are left to the tree-walker, but anything within them is
+    // still compiled.
+    private Code compileStmt(NodeStmt stmt) { 
+        if (stmt == null) return NULL;
+
+        final Code code;
+        if (stmt instanceof NodeStmt.Assign) 
+            code = compile((NodeStmt.Assign) stmt);
+        else if (stmt instanceof NodeStmt.Declare) 
+            code = compile((NodeStmt.Declare) stmt);
+        else if (stmt instanceof NodeStmt.If) 
+            code = compile((NodeStmt.If) stmt);
+        else if (stmt instanceof NodeStmt.While) 
+            code = compile((NodeStmt.While) stmt);
+        else if (stmt instanceof NodeStmt.For) 
+            code = compile((NodeStmt.For) stmt);
+        else if (stmt instanceof NodeStmt.ForEach) 
+            code = compile((NodeStmt.ForEach) stmt);
+        else if (stmt instanceof NodeStmt.ParallelForEach) 
+            code = compile((NodeStmt.ParallelForEach) stmt);
+        else if (stmt instanceof NodeStmt.Return) 
+            code = compile((NodeStmt.Return) stmt);
+        else if (stmt instanceof NodeStmt.Expr) 
+            code = compile((NodeStmt.Expr) stmt);
+        else if (stmt instanceof NodeStmt.Scope) 
+            code = compile((NodeStmt.Scope) stmt);
+        else if (stmt instanceof NodeStmt.Break) 
+            code = compile((NodeStmt.Break) stmt);
+        else if (stmt instanceof NodeStmt.Continue) 
+            code = compile((NodeStmt.Continue) stmt);
+        else if (stmt instanceof NodeStmt.TryCatch) 
+            code = compile((NodeStmt.TryCatch) stmt);
+        else if (stmt instanceof NodeStmt.Function) 
+            code = compile((NodeStmt.Function) stmt);
+        else code = null;
+        if (code == null) return intr -> { intr.runStmt(stmt); return null; };
+        
+        stmt.code = code;
+        return code;
+    }
+
+    private Code compileScope(NodeScope scope) {
+        if (scope == null) return NULL;
+
+        final Code[] stmts = new Code[scope.stmts.size()];
+        for (int i = 0; i < stmts.length; i += 1) 
+            stmts[i] = compileStmt(scope.stmts.get(i));
+
+        final String[] locals = scope.locals;
+        final Code code = intr -> {
+            intr.enterScope(locals);
+            for (int i = 0; i < stmts.length && intr.jump == null; i += 1) 
+                stmts[i].run(intr);
+            intr.exitScope();
+            return null;
+        };
+
+        scope.code = code;
+        return code;
+    }
+
+    private Code compile(NodeStmt.Assign assign) {
+        final Code expr = compileExpr(assign.expr);
+        final Code target = compileTerm(assign.term);
+
+        // Only assignments to variables are compiled.
+        if (!(assign.term instanceof NodeTerm.Variable)) return null;
+        
+        final NodeTerm.Variable var = (NodeTerm.Variable) assign.term;
+        if (var.slot < 0) return intr -> {
+            final Object lhs = target.run(intr);
+            final Object value = calcAssign(intr, assign, lhs, expr.run(intr));
+            intr.setVar(var, value);
+            intr.lastResult = value;
+            return null;
+        };
+
+        // Local variables can hold unboxed numbers.
+        final Code value = assign.binary == null ? 
+            expr : new Binary(assign.binary, target, expr);
+        final int depth = var.depth, slot = var.slot;
+        return intr -> {
+            final Object result = result(intr, value);
+            intr.assignable(depth).set(slot, result, intr.lastBits);
+            return null;
+        };
+    }
+
+    private Code compile(NodeStmt.Declare decl) { 
+        final Code expr = compileExpr(decl.expr);
+        final String name = decl.var;
+        final int slot = decl.slot;
+        if (slot < 0) return intr -> {
+            final Object value = expr.run(intr);
+            intr.defineVar(name, slot, value);
+            intr.lastResult = value;
+            return null;
+        };
+
+        return intr -> {
+            final Object result = result(intr, expr);
+            intr.definable(slot).set(slot, result, intr.lastBits);
+            return null;
+        };
+    }
+
+    private Code compile(NodeStmt.If stmt) {
+        final Code expr = compileExpr(stmt.expr);
+        final Code succ = compileScope(stmt.succ);
+        final Code fail = compileScope(stmt.fail);
+        return intr -> {
+            if ((boolean) castValue(intr, "boolean", expr.run(intr))) 
+                succ.run(intr);
+            else fail.run(intr);
+            return null;
+        };
+    }
+
+    private Code compile(NodeStmt.While loop) {
+        final Code expr = compileExpr(loop.expr);
+        final Code scope = compileScope(loop.scope);
+        return intr -> {
+            while ((Boolean) expr.run(intr)) {
+                intr.countIteration();
+                scope.run(intr);
+                if (intr.jump == JumpOp.RETURN) break;
+                else if (intr.jump == JumpOp.CONTINUE) intr.jump = null;
+                else if (intr.jump == JumpOp.BREAK) { intr.jump = null; break; }
+            }
+            return null;
+        };
+    }
+
+    private Code compile(NodeStmt.For loop) {
+        final Code init = compileStmt(loop.init);
+        final Code cond = compileExpr(loop.cond);
+        final Code scope = compileScope(loop.scope);
+        final Code inc = compileStmt(loop.inc);
+        final String[] locals = loop.locals;
+        return intr -> {
+            intr.enterScope(locals);
+            init.run(intr);
+            while ((Boolean) cond.run(intr)) {
+                intr.countIteration();
+                scope.run(intr);
+
+                if (intr.jump == JumpOp.RETURN) break;
+                else if (intr.jump == JumpOp.CONTINUE) intr.jump = null;
+                else if (intr.jump == JumpOp.BREAK) { intr.jump = null; break; }
+
+                inc.run(intr);
+            }
+            intr.exitScope();
+            return null;
+        };
+    }
+
+    private Code compile(NodeStmt.ForEach loop) {
+        final Code list = compileTerm(loop.list);
+        final Code scope = compileScope(loop.scope);
+        final String[] locals = loop.locals;
+        return intr -> {
+            final Iterator<?> iterator = intr.iterate(list.run(intr));
+            intr.enterScope(locals);
+            final Frame frame = intr.frame(0);
+            final PrimitiveIterator.OfLong longs = Interpreter.longs(iterator);
+            while (iterator.hasNext()) {
+                intr.countIteration();
+                if (longs != null) frame.set(0, Frame.LONG, longs.nextLong());
+                else frame.values[0] = iterator.next();
+                scope.run(intr);
+                if (intr.jump == JumpOp.RETURN) break;
+                else if (intr.jump == JumpOp.CONTINUE) intr.jump = null;
+                else if (intr.jump == JumpOp.BREAK) { intr.jump = null; break; }
+            }
+            intr.exitScope();
+            return null;
+        };
+    }
+
+    private Code compile(NodeStmt.Return stmt) { 
+        final Code expr = compileExpr(stmt.expr);
+        return intr -> {
+            intr.lastResult = expr.run(intr);
+            intr.jump = JumpOp.RETURN;
+            return null;
+        };
+    }
+
+    private Code compile(NodeStmt.Expr exp) { 
+        final Code expr = compileExpr(exp.expr);
+        return intr -> { intr.lastResult = expr.run(intr); return null; };
+    }
+
+    private Code compile(NodeStmt.Scope scope) { 
+        return compileScope(scope.scope); 
+    }
+
+    private Code compile(NodeStmt.Break stmt) { 
+        return intr -> { intr.jump = JumpOp.BREAK; return null; }; 
+    }
+
+    private Code compile(NodeStmt.Continue stmt) { 
+        return intr -> { intr.jump = JumpOp.CONTINUE; return null; }; 
+    }
+
+    // Try blocks and function definitions are left to the tree-walker.
+    private Code compile(NodeStmt.TryCatch block) {
+        compileScope(block._try);
+        compileScope(block._catch);
+        compileScope(block._finally);
+        return null;
+    }
+
+    // Parallel loops are left to the tree-walker too, which hands their 
+    // compiled bodies to its workers.
+    private Code compile(NodeStmt.ParallelForEach loop) {
+        compileTerm(loop.list);
+        compileScope(loop.scope);
+        return null;
+    }
+
+    private Code compile(NodeStmt.Function def) { 
+        compileExpr(def.lambda); 
+        return null;
+    }
+
+    // MARK: Expressions
+    // Compiles an expression and returns code that evaluates it the same way
+    // Interpreter.runExpr() does, line tracking included.
+    private Code compileExpr(NodeExpr expr) {
+        if (expr == null) return NULL;
+
+        if (expr instanceof NodeExpr.Lambda) {
+            final NodeExpr.Lambda lambda = (NodeExpr.Lambda) expr;
+            for (NodeParam param : lambda.params) compileExpr(param._default);
+            compileScope(lambda.body);
+            return intr -> intr.runExpr(lambda);
+        }
+
+        final Code code;
+        if (expr instanceof NodeExpr.Binary)
+            code = compileBinary((NodeExpr.Binary) expr);
+        else code = compileTerm(((NodeExpr.Term) expr).val);
+
+        expr.code = code;
+        return new Lined(expr.line, code);
+    }
+
+    // Sets the current line before running an expression.
+    private static final class Lined implements Code {
+        final int line;
+        final Code code;
+        Lined(int l, Code c) { line = l; code = c; }
+
+        public Object run(Interpreter intr) { 
+            intr.line = line; 
+            return code.run(intr); 
+        }
+
+        public Object unboxed(Interpreter intr) { return code.unboxed(intr); }
+        public long runLong(Interpreter intr) { 
+            intr.line = line; 
+            return code.runLong(intr); 
+        }
+
+        public double runDouble(Interpreter intr) { 
+            intr.line = line; 
+            return code.runDouble(intr); 
+        }
+    }
+
+    private Code compileBinary(NodeExpr.Binary node) {
+        final Code lhs = compileTerm(node.lhs), rhs = compileTerm(node.rhs);
+        switch (node.op) {
+            case And: return intr -> {
+                final Object value = lhs.run(intr);
+                return (Boolean) castValue(intr, "boolean", value) ?
+                    rhs.run(intr) : value;
+            };
+            case Or: return intr -> {
+                final Object value = lhs.run(intr);
+                return !(Boolean) castValue(intr, "boolean", value) ?
+                    rhs.run(intr) : value;
+            };
+            default: return new Binary(node, lhs, rhs);
+        }
+    }
+
+    // A binary operation that works on unboxed operands while its node is
+    // specialised on longs or doubles. If an operand turns out to be of any
+    // other type, the operation is completed by Calculations.calcBinary(), 
+    // which despecialises the node.
+    private static final class Binary implements Code {
+        final NodeExpr.Binary node;
+        final Code lhs, rhs;
+        Binary(NodeExpr.Binary n, Code l, Code r) { 
+            node = n; lhs = l; rhs = r; 
+        }
+
+        public Object run(Interpreter intr) {
+            if (node.spec == BinarySpec.LongLong) {
+                final long l;
+                try { l = lhs.runLong(intr); }
+                catch (Unexpected e) { return generic(intr, e.value); }
+                try { 
+                    return calcBinaryLong(intr, node.op, l, rhs.runLong(intr)); 
+                }
+                catch (Unexpected e) { 
+                    return calcBinary(intr, node, l, e.value); 
+                }
+            }
+            else if (node.spec == BinarySpec.DoubleDouble) {
+                final double l;
+                try { l = lhs.runDouble(intr); }
+                catch (Unexpected e) { return generic(intr, e.value); }
+                try { 
+                    return calcBinaryDouble(
+                        intr, node.op, l, rhs.runDouble(intr)
+                    ); 
+                }
+                catch (Unexpected e) { 
+                    return calcBinary(intr, node, l, e.value); 
+                }
+            }
+            return calcBinary(intr, node, lhs.run(intr), rhs.run(intr));
+        }
+
+        public Object unboxed(Interpreter intr) {
+            if (node.spec == BinarySpec.LongLong && arithmetic(node.op, true)) 
+                return Frame.LONG;
+            if (node.spec == BinarySpec.DoubleDouble && 
+                arithmetic(node.op, false)) 
+                return Frame.DOUBLE;
+            return null;
+        }
+
+        public long runLong(Interpreter intr) {
+            if (unboxed(intr) != Frame.LONG) return asLong(run(intr));
+
+            final long l;
+            try { l = lhs.runLong(intr); }
+            catch (Unexpected e) { return asLong(generic(intr, e.value)); }
+            try { return calcLong(intr, node.op, l, rhs.runLong(intr)); }
+            catch (Unexpected e) { 
+                return asLong(calcBinary(intr, node, l, e.value)); 
+            }
+        }
+
+        public double runDouble(Interpreter intr) {
+            if (unboxed(intr) != Frame.DOUBLE) return asDouble(run(intr));
+
+            final double l;
+            try { l = lhs.runDouble(intr); }
+            catch (Unexpected e) { return asDouble(generic(intr, e.value)); }
+            try { return calcDouble(intr, node.op, l, rhs.runDouble(intr)); }
+            catch (Unexpected e) { 
+                return asDouble(calcBinary(intr, node, l, e.value)); 
+            }
+        }
+
+        // Completes the operation once the left operand was not a number.
+        private Object generic(Interpreter intr, Object l) {
+            return calcBinary(intr, node, l, rhs.run(intr));
+        }
+    }
+
+    // MARK: Terms
+    private Code compileTerm(NodeTerm term) {
+        if (term instanceof NodeTerm.Literal) {
+            final Object value = ((NodeTerm.Literal<?>) term).lit;
+            return intr -> value;
+        }
+        else if (term instanceof NodeTerm.Variable) {
+            return compileVariable((NodeTerm.Variable) term);
+        }
+        else if (term instanceof NodeTerm.Expr) {
+            return compileExpr(((NodeTerm.Expr) term).expr);
+        }
+        else if (term instanceof NodeTerm.ArrayLiteral) {
+            return compileArray((NodeTerm.ArrayLiteral) term);
+        }
+        else if (term instanceof NodeTerm.MapLiteral) {
+            return compileMap((NodeTerm.MapLiteral) term);
+        }
+        else if (term instanceof NodeTerm.UnaryExpr) {
+            final NodeTerm.UnaryExpr unary = (NodeTerm.UnaryExpr) term;
+            final Code val = compileTerm(unary.val);
+            return intr -> calcUnary(intr, unary.op, val.run(intr));
+        }
+        else if (term instanceof NodeTerm.ArrayAccess) {
+            final NodeTerm.ArrayAccess access = (NodeTerm.ArrayAccess) term;
+            final Code array = compileTerm(access.array);
+            final Code index = compileExpr(access.index);
+            return intr -> {
+                final Object object = array.run(intr);
+                return intr.accessIndex(access, object, index.run(intr));
+            };
+        }
+        else if (term instanceof NodeTerm.PropAccess) {
+            final NodeTerm.PropAccess access = (NodeTerm.PropAccess) term;
+            final Code object = compileTerm(access.object);
+            final String prop = access.prop;
+            return intr -> intr.accessProp(object.run(intr), prop);
+        }
+        else if (term instanceof NodeTerm.Call) {
+            return compileCall((NodeTerm.Call) term);
+        }
+        else if (term instanceof NodeTerm.Cast) {
+            final Code object = compileTerm(((NodeTerm.Cast) term).object);
+            final String type = ((NodeTerm.Cast) term).type.type;
+            return intr -> castValue(intr, type, object.run(intr));
+        }
+
+        // Anything else is left to the tree-walker.
+        return intr -> intr.runTerm(term);
+    }
+
+    private Code compileVariable(NodeTerm.Variable var) {
+        final int depth = var.depth, slot = var.slot;
+        final String name = var.var;
+        if (slot < 0) return intr -> intr.variable(name);
+        return new Local(depth, slot);
+    }
+
+    private static final class Local implements Code {
+        final int depth, slot;
+        Local(int d, int s) { depth = d; slot = s; }
+
+        public Object run(Interpreter intr) { 
+            return intr.frame(depth).value(slot); 
+        }
+
+        // Unboxed numbers are copied from one variable to another as they are.
+        public Object unboxed(Interpreter intr) {
+            final Object value = intr.frame(depth).values[slot];
+            return value == Frame.LONG || value == Frame.DOUBLE ? value : null;
+        }
+
+        public long runLong(Interpreter intr) {
+            final Frame frame = intr.frame(depth);
+            return frame.values[slot] == Frame.LONG ? 
+                frame.bits[slot] : asLong(frame.value(slot));
+        }
+
+        public double runDouble(Interpreter intr) {
+            final Frame frame = intr.frame(depth);
+            return frame.values[slot] == Frame.DOUBLE ? 
+                frame.bitsOf(slot) : asDouble(frame.value(slot));
+        }
+    }
+
+    private Code compileArray(NodeTerm.ArrayLiteral arr) {
+        final PersistentList constant = arr.constant;
+        if (constant != null) return intr -> intr.own(constant.copy());
+
+        final Code[] items = compileAll(arr.items.toArray(new NodeExpr[0]));
+        return intr -> {
+            final List<Object> list = new PersistentList();
+            for (Code item : items) list.add(flat(item.run(intr)));
+            return intr.own(list);
+        };
+    }
+
+    private Code compileMap(NodeTerm.MapLiteral map) {
+        final PersistentMap constant = map.constant;
+        if (constant != null) return intr -> intr.own(constant.copy());
+
+        final String[] keys = new String[map.items.size()];
+        final NodeExpr[] exprs = new NodeExpr[keys.length];
+        for (int i = 0; i < keys.length; i += 1) {
+            keys[i] = map.items.get(i).key;
+            exprs[i] = map.items.get(i).value;
+        }
+
+        final Code[] values = compileAll(exprs);
+        return intr -> {
+            final Map<Object, Object> result = new PersistentMap();
+            for (int i = 0; i < keys.length; i += 1)
+                result.put(keys[i], flat(values[i].run(intr)));
+            return intr.own(result);
+        };
+    }
+
+    private Code compileCall(NodeTerm.Call call) {
+        final Code f = compileTerm(call.f);
+        final Code[] args = compileAll(call.args.toArray(new NodeExpr[0]));
+        return intr -> {
+            final Object function = f.run(intr);
+            final Object[] values = new Object[args.length];
+            for (int i = 0; i < args.length; i += 1)
+                values[i] = args[i].run(intr);
+            return intr.invoke(call, function, values);
+        };
+    }
+
+    private Code[] compileAll(NodeExpr[] exprs) {
+        final Code[] codes = new Code[exprs.length];
+        for (int i = 0; i < exprs.length; i += 1) 
+            codes[i] = compileExpr(exprs[i]);
+        return codes;
+    }
+}
@@ -0,0 +1,80 @@
+package smg.interpreter;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * JDK Flight Recorder events, so that scripts show up in recordings next to
+ * GC and thread activity. They are all in the SMG category, and recorded
+ * like any other event, for example:
+ *   java -XX:StartFlightRecording:filename=run.jfr,settings=profile ...
+ *   jfr print --categories SMG run.jfr
+ *
+ * Parses and runs are rare enough to always create their events, which the
+ * JIT removes when recording is off. Calls are checked for with isEnabled()
+ * first, so that they cost a single field read when they are not recorded.
+ */
+final class Events {
+    private Events() {}
+
+    static final EventType CALLS = EventType.getEventType(Call.class);
+    static final EventType INTEROP = EventType.getEventType(JavaCall.class);
+
+    @Name("smg.Parse")
+    @Label("Script Parse")
+    @Category("SMG")
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("Source Size") @DataAmount
+        long sourceSize;
+
+        @Label("Tokens")
+        long tokens;
+    }
+
+    @Name("smg.Run")
+    @Label("Script Run")
+    @Category("SMG")
+    @Description("One call of Interpreter.run()")
+    static final class Run extends Event {
+        @Label("Loop Iterations")
+        long iterations;
+
+        @Label("Function Calls")
+        long calls;
+
+        @Label("Result Type")
+        @Description("The type of the result, or of the exception thrown")
+        String resultType;
+    }
+
+    @Name("smg.Call")
+    @Label("Script Function Call")
+    @Category("SMG")
+    @StackTrace(false)
+    static final class Call extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        int line;
+    }
+
+    @Name("smg.Interop")
+    @Label("Java Method Call")
+    @Category("SMG")
+    @StackTrace(false)
+    static final class JavaCall extends Event {
+        @Label("Class")
+        Class<?> owner;
+
+        @Label("Method")
+        String method;
+    }
+}
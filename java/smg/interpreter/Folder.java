@@ -0,0 +1,319 @@
+package smg.interpreter;
+
+import static smg.interpreter.Calculations.*;
+import static smg.interpreter.Types.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The folder rewrites a parsed program before it is resolved, working out
+ * once whatever would come out the same on every run. Binary expressions,
+ * unary expressions and casts of literals are replaced by the literals they
+ * evaluate to, so that
+ * <pre>
+ * let timeout = 60 * 60 * 24
+ * </pre>
+ * runs as if it had been written with 86400. Branches of if statements whose
+ * conditions are literals are replaced by the branch that would be taken, or
+ * dropped. List and map literals of nothing but literals are built up front,
+ * and only copied when they are run (see NodeTerm.ArrayLiteral).
+ * <p>
+ * Nothing is folded that could fail, or that could produce a value a script
+ * might change. Those expressions are left as they are, to be evaluated and
+ * report their errors at runtime as before.
+ * <p>
+ * Nodes are immutable apart from what later passes fill in, so the folder
+ * builds a new tree rather than changing the one it is given.
+ */
+final class Folder {
+
+    // Only used to evaluate constants. Their errors are never reported.
+    private final Interpreter intr =
+        new Interpreter((NodeProgram) null, Map.of());
+
+    private Folder() {}
+
+    static NodeProgram fold(NodeProgram program) {
+        if (program == null) return null;
+        return new NodeProgram(new Folder().foldStmts(program.stmts));
+    }
+
+    // MARK: Statements
+    private List<NodeStmt> foldStmts(List<NodeStmt> stmts) {
+        final List<NodeStmt> result = new ArrayList<>(stmts.size());
+        for (NodeStmt stmt : stmts) {
+            final NodeStmt folded = foldStmt(stmt);
+            if (folded != null) result.add(folded);
+        }
+        return result;
+    }
+
+    private NodeScope foldScope(NodeScope scope) {
+        return scope == null ? null : new NodeScope(foldStmts(scope.stmts));
+    }
+
+    // Folds a statement, or returns null if it would never do anything.
+    private NodeStmt foldStmt(NodeStmt stmt) {
+        if (stmt == null) return null;
+
+        final NodeStmt result;
+        if (stmt instanceof NodeStmt.If)
+            return foldIf((NodeStmt.If) stmt);
+        else if (stmt instanceof NodeStmt.Assign) {
+            final NodeStmt.Assign assign = (NodeStmt.Assign) stmt;
+            result = new NodeStmt.Assign(
+                assign.op, foldTerm(assign.term), foldExpr(assign.expr)
+            );
+        }
+        else if (stmt instanceof NodeStmt.Declare)
+            result = foldDeclare((NodeStmt.Declare) stmt);
+        else if (stmt instanceof NodeStmt.Expr)
+            result = new NodeStmt.Expr(foldExpr(((NodeStmt.Expr) stmt).expr));
+        else if (stmt instanceof NodeStmt.While) {
+            final NodeStmt.While loop = (NodeStmt.While) stmt;
+            result = new NodeStmt.While(
+                foldExpr(loop.expr), foldScope(loop.scope)
+            );
+        }
+        else if (stmt instanceof NodeStmt.For) {
+            final NodeStmt.For loop = (NodeStmt.For) stmt;
+            result = new NodeStmt.For(
+                loop.init == null ? null : foldDeclare(loop.init),
+                foldExpr(loop.cond), foldStmt(loop.inc), foldScope(loop.scope)
+            );
+        }
+        else if (stmt instanceof NodeStmt.ForEach) {
+            final NodeStmt.ForEach loop = (NodeStmt.ForEach) stmt;
+            result = new NodeStmt.ForEach(
+                loop.itr, foldTerm(loop.list), foldScope(loop.scope)
+            );
+        }
+        else if (stmt instanceof NodeStmt.ParallelForEach) {
+            final NodeStmt.ParallelForEach loop = 
+                (NodeStmt.ParallelForEach) stmt;
+            result = new NodeStmt.ParallelForEach(
+                loop.itr, foldTerm(loop.list), foldScope(loop.scope)
+            );
+        }
+        else if (stmt instanceof NodeStmt.Scope)
+            result = new NodeStmt.Scope(
+                foldScope(((NodeStmt.Scope) stmt).scope)
+            );
+        else if (stmt instanceof NodeStmt.Return)
+            result = new NodeStmt.Return(
+                foldExpr(((NodeStmt.Return) stmt).expr)
+            );
+        else if (stmt instanceof NodeStmt.Function) {
+            final NodeStmt.Function def = (NodeStmt.Function) stmt;
+            result = new NodeStmt.Function(
+                def.name, foldParams(def.params), foldScope(def.body),
+                def.lambda.line
+            );
+        }
+        else if (stmt instanceof NodeStmt.TryCatch) {
+            final NodeStmt.TryCatch block = (NodeStmt.TryCatch) stmt;
+            result = new NodeStmt.TryCatch(
+                foldScope(block._try), foldScope(block._catch), block.err,
+                foldScope(block._finally)
+            );
+        }
+
+        // Breaks and continues have nothing to fold.
+        else return stmt;
+
+        result.line = stmt.line;
+        return result;
+    }
+
+    private NodeStmt.Declare foldDeclare(NodeStmt.Declare decl) {
+        final NodeStmt.Declare result =
+            new NodeStmt.Declare(decl.var, foldExpr(decl.expr));
+        result.line = decl.line;
+        return result;
+    }
+
+    // The branch taken by an if statement with a constant condition is run as
+    // a block of its own, so that its variables are still scoped to it.
+    private NodeStmt foldIf(NodeStmt.If stmt) {
+        final NodeExpr expr = foldExpr(stmt.expr);
+        final NodeScope succ = foldScope(stmt.succ);
+        final NodeScope fail = foldScope(stmt.fail);
+
+        final NodeStmt result;
+        if (!constant(expr)) result = new NodeStmt.If(expr, succ, fail);
+        else if (truthy(value(expr))) result = new NodeStmt.Scope(succ);
+        else if (fail != null) result = new NodeStmt.Scope(fail);
+        else return null;
+
+        result.line = stmt.line;
+        return result;
+    }
+
+    private List<NodeParam> foldParams(List<NodeParam> params) {
+        final List<NodeParam> result = new ArrayList<>(params.size());
+        for (NodeParam param : params)
+            result.add(new NodeParam(param.param, foldExpr(param._default)));
+        return result;
+    }
+
+    // MARK: Expressions
+    private NodeExpr foldExpr(NodeExpr expr) {
+        if (expr instanceof NodeExpr.Binary)
+            return foldBinary((NodeExpr.Binary) expr);
+        else if (expr instanceof NodeExpr.Term) {
+            final NodeTerm val = ((NodeExpr.Term) expr).val;
+            return new NodeExpr.Term(foldTerm(val), expr.line);
+        }
+        else if (expr instanceof NodeExpr.Lambda) {
+            final NodeExpr.Lambda def = (NodeExpr.Lambda) expr;
+            return new NodeExpr.Lambda(
+                foldParams(def.params), foldScope(def.body), def.line
+            );
+        }
+        return expr;
+    }
+
+    private NodeExpr foldBinary(NodeExpr.Binary node) {
+        final NodeTerm lhs = foldTerm(node.lhs), rhs = foldTerm(node.rhs);
+        final BinaryOp op = node.op;
+
+        // Logical operators only need their left side to be constant to know
+        // which side they evaluate to.
+        if (op == BinaryOp.And || op == BinaryOp.Or) {
+            if (!constant(lhs))
+                return new NodeExpr.Binary(op, lhs, rhs, node.line);
+            final boolean right = (op == BinaryOp.And) == truthy(value(lhs));
+            return new NodeExpr.Term(right ? rhs : lhs, node.line);
+        }
+
+        if (constant(lhs) && constant(rhs)) {
+            final NodeTerm result = literal(
+                () -> calcBinary(intr, op, value(lhs), value(rhs))
+            );
+            if (result != null) return new NodeExpr.Term(result, node.line);
+        }
+        return new NodeExpr.Binary(op, lhs, rhs, node.line);
+    }
+
+    // MARK: Terms
+    private NodeTerm foldTerm(NodeTerm term) {
+        if (term instanceof NodeTerm.Expr) {
+            final NodeExpr expr = foldExpr(((NodeTerm.Expr) term).expr);
+            return constant(expr) ?
+                ((NodeExpr.Term) expr).val : new NodeTerm.Expr(expr);
+        }
+        else if (term instanceof NodeTerm.UnaryExpr) {
+            final NodeTerm.UnaryExpr unary = (NodeTerm.UnaryExpr) term;
+            final NodeTerm val = foldTerm(unary.val);
+            final NodeTerm result = !constant(val) ? null :
+                literal(() -> calcUnary(intr, unary.op, value(val)));
+            return result != null ? result :
+                new NodeTerm.UnaryExpr(unary.op, val);
+        }
+        else if (term instanceof NodeTerm.Cast) {
+            final NodeTerm.Cast cast = (NodeTerm.Cast) term;
+            final NodeTerm object = foldTerm(cast.object);
+            final NodeTerm result = !constant(object) ? null :
+                literal(() -> castValue(intr, cast.type.type, value(object)));
+            return result != null ? result :
+                new NodeTerm.Cast(object, cast.type);
+        }
+        else if (term instanceof NodeTerm.ArrayLiteral)
+            return foldArray((NodeTerm.ArrayLiteral) term);
+        else if (term instanceof NodeTerm.MapLiteral)
+            return foldMap((NodeTerm.MapLiteral) term);
+        else if (term instanceof NodeTerm.ArrayAccess) {
+            final NodeTerm.ArrayAccess access = (NodeTerm.ArrayAccess) term;
+            return new NodeTerm.ArrayAccess(
+                foldTerm(access.array), foldExpr(access.index)
+            );
+        }
+        else if (term instanceof NodeTerm.PropAccess) {
+            final NodeTerm.PropAccess access = (NodeTerm.PropAccess) term;
+            return new NodeTerm.PropAccess(
+                foldTerm(access.object), access.prop
+            );
+        }
+        else if (term instanceof NodeTerm.Call) {
+            final NodeTerm.Call call = (NodeTerm.Call) term;
+            return new NodeTerm.Call(foldTerm(call.f), foldExprs(call.args));
+        }
+
+        // Literals and variables
+        return term;
+    }
+
+    private List<NodeExpr> foldExprs(List<NodeExpr> exprs) {
+        final List<NodeExpr> result = new ArrayList<>(exprs.size());
+        for (NodeExpr expr : exprs) result.add(foldExpr(expr));
+        return result;
+    }
+
+    private NodeTerm foldArray(NodeTerm.ArrayLiteral arr) {
+        final NodeTerm.ArrayLiteral result =
+            new NodeTerm.ArrayLiteral(foldExprs(arr.items));
+        final PersistentList items = new PersistentList();
+        for (NodeExpr item : result.items) {
+            if (!constant(item)) return result;
+            items.add(value(item));
+        }
+        result.constant = items;
+        return result;
+    }
+
+    private NodeTerm foldMap(NodeTerm.MapLiteral map) {
+        final List<NodeMapEntry> entries = new ArrayList<>(map.items.size());
+        for (NodeMapEntry entry : map.items)
+            entries.add(new NodeMapEntry(entry.key, foldExpr(entry.value)));
+
+        final NodeTerm.MapLiteral result = new NodeTerm.MapLiteral(entries);
+        final PersistentMap values = new PersistentMap();
+        for (NodeMapEntry entry : entries) {
+            if (!constant(entry.value)) return result;
+            values.put(entry.key, value(entry.value));
+        }
+        result.constant = values;
+        return result;
+    }
+
+    // MARK: Helpers
+    private static boolean constant(NodeTerm term) {
+        return term instanceof NodeTerm.Literal;
+    }
+
+    private static boolean constant(NodeExpr expr) {
+        return expr instanceof NodeExpr.Term &&
+            constant(((NodeExpr.Term) expr).val);
+    }
+
+    private static Object value(NodeTerm term) {
+        return ((NodeTerm.Literal<?>) term).lit;
+    }
+
+    private static Object value(NodeExpr expr) {
+        return value(((NodeExpr.Term) expr).val);
+    }
+
+    private boolean truthy(Object value) {
+        return (Boolean) castValue(intr, "boolean", value);
+    }
+
+    private interface Constant { Object evaluate(); }
+
+    // Evaluates a constant expression into a literal. Returns null if it fails
+    // or its value is not immutable, like the dates that casts can produce.
+    private static NodeTerm literal(Constant constant) {
+        final Object value;
+        try { value = flat(constant.evaluate()); }
+        catch (RuntimeException e) { return null; }
+
+        if (value == null || value instanceof String ||
+            value instanceof Boolean || value instanceof Character ||
+            value instanceof Long || value instanceof Double ||
+            value instanceof Integer || value instanceof Float)
+            return new NodeTerm.Literal<>(value);
+        return null;
+    }
+}
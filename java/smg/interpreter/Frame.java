@@ -0,0 +1,111 @@
+package smg.interpreter;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Fixed-size scope frames. The Resolver works out ahead of time which local
+ * variables a scope declares and gives each one a slot, so that resolved
+ * variable nodes can be read and written with plain array indexing.
+ *
+ * Frames still behave like maps so that anything looking variables up by name
+ * (dynamic lookups, captures, the host API) keeps working as before. A slot
+ * only counts as defined once its declaration has actually run.
+ *
+ * Compiled code can also keep numbers in a frame without boxing them. Their
+ * slots are marked LONG or DOUBLE and the numbers themselves are kept as bits
+ * alongside. They are boxed only when read as objects.
+ */
+class Frame extends AbstractMap<String, Object> {
+
+    // Marks slots whose declarations have not been executed yet.
+    static final Object UNDEFINED = new Object();
+
+    // Marks slots whose values are unboxed numbers.
+    static final Object LONG = new Object(), DOUBLE = new Object();
+
+    final String[] names;
+    final Object[] values;
+
+    // The bits of unboxed numbers by slot. Created on demand.
+    long[] bits = null;
+
+    // Variables defined by name that the Resolver did not know about, usually
+    // through Interpreter.defineVar() from the host. Created on demand.
+    private Map<String, Object> extra = null;
+
+    Frame(String[] locals) {
+        names = locals;
+        values = new Object[locals.length];
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    int slotOf(Object key) {
+        for (int i = 0; i < names.length; i += 1)
+            if (names[i].equals(key)) return i;
+        return -1;
+    }
+
+    // The value in a slot, boxing it if needed. Undefined slots are returned
+    // as they are.
+    Object value(int slot) {
+        final Object value = values[slot];
+        if (value == LONG) return Long.valueOf(bits[slot]);
+        if (value == DOUBLE) return Double.valueOf(bitsOf(slot));
+        return value;
+    }
+
+    // Stores a value in a slot. If the value is LONG or DOUBLE, the number is
+    // given by its bits instead.
+    void set(int slot, Object value, long bits) {
+        if (value == LONG || value == DOUBLE) {
+            if (this.bits == null) this.bits = new long[values.length];
+            this.bits[slot] = bits;
+        }
+        values[slot] = value;
+    }
+
+    double bitsOf(int slot) { return Double.longBitsToDouble(bits[slot]); }
+
+    @Override
+    public boolean containsKey(Object key) {
+        final int slot = slotOf(key);
+        if (slot >= 0) return values[slot] != UNDEFINED;
+        return extra != null && extra.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        final int slot = slotOf(key);
+        if (slot >= 0) return values[slot] == UNDEFINED ? null : value(slot);
+        return extra == null ? null : extra.get(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        final int slot = slotOf(key);
+        if (slot < 0) {
+            if (extra == null) extra = new HashMap<>();
+            return extra.put(key, value);
+        }
+
+        final Object old = value(slot);
+        values[slot] = value;
+        return old == UNDEFINED ? null : old;
+    }
+
+    // A read-only snapshot of all the variables defined so far.
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        final Map<String, Object> defined = new HashMap<>();
+        for (int i = 0; i < names.length; i += 1)
+            if (values[i] != UNDEFINED) defined.put(names[i], value(i));
+
+        if (extra != null) defined.putAll(extra);
+        return Collections.unmodifiableSet(defined.entrySet());
+    }
+}
@@ -0,0 +1,270 @@
+package smg.interpreter;
+
+import smg.interpreter.Capture.F;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Interop
+ *
+ * Calls from scripts into the Java classes given to integrateClasses(). Every
+ * public method name of such a class becomes a JavaMethod, which picks the
+ * overload to call from the arguments it is given, the way java.beans does:
+ *
+ * If the first argument is an instance of the class, an instance method that
+ * takes the remaining arguments is looked for first. Otherwise, or if there is
+ * none, a static method (or constructor, for 'new') that takes all of them.
+ * Failing that, a method of the Class object itself, such as getName().
+ *
+ * A resolved overload is called through a MethodHandle. Resolutions are cached
+ * by the classes of the arguments, first in the call node that made them (an
+ * inline cache of up to CACHE_SIZE entries) and then in the JavaMethod itself,
+ * which also serves calls made from Java and call sites that see too many
+ * different classes.
+ */
+final class Interop {
+    private Interop() {}
+
+    // How many resolutions a single call site remembers
+    static final int CACHE_SIZE = 4;
+
+    static final Target[] NONE = new Target[0];
+
+    private static final MethodHandles.Lookup lookup =
+        MethodHandles.publicLookup();
+
+    // A method handle resolved for one combination of argument classes. The
+    // handle takes all of the arguments as an Object[] and returns an Object.
+    static final class Target {
+        final JavaMethod method;
+        final Class<?>[] classes;
+        final MethodHandle handle;
+
+        Target(JavaMethod m, Class<?>[] cs, MethodHandle h) {
+            method = m; classes = cs; handle = h;
+        }
+
+        boolean matches(JavaMethod m, Object[] args) {
+            if (m != method || args.length != classes.length) return false;
+            for (int i = 0; i < args.length; i += 1)
+                if (classOf(args[i]) != classes[i]) return false;
+            return true;
+        }
+    }
+
+    static final class JavaMethod implements F {
+        final Class<?> owner;
+        final String name;
+
+        // The interpreter that integrated the class, which raises the errors
+        // of calls made from Java. Those of scripts are raised by the
+        // interpreter that made the call, which may be on another thread.
+        private final Interpreter intr;
+        private final Map<List<Class<?>>, Target> resolved =
+            new ConcurrentHashMap<>();
+
+        JavaMethod(Interpreter i, Class<?> c, String n) {
+            intr = i; owner = c; name = n;
+        }
+
+        public Object apply(Object... args) { return apply(intr, null, args); }
+
+        // Called from a script, through a call node unless the script passed
+        // the method on to be called from elsewhere. The call node's inline
+        // cache is searched and updated before falling back on this method's
+        // own cache. Call nodes can be shared between threads, so the cache is
+        // only ever replaced as a whole.
+        Object apply(Interpreter caller, NodeTerm.Call site, Object[] args) {
+            if (site == null) return call(caller, target(caller, args), args);
+
+            final Target[] cache = site.targets;
+            for (Target target : cache) {
+                if (target.matches(this, args)) 
+                    return call(caller, target, args);
+            }
+
+            final Target target = target(caller, args);
+            if (cache.length < CACHE_SIZE) {
+                final Target[] grown = Arrays.copyOf(cache, cache.length + 1);
+                grown[cache.length] = target;
+                site.targets = grown;
+            }
+            return call(caller, target, args);
+        }
+
+        private Target target(Interpreter caller, Object[] args) {
+            final List<Class<?>> key = new ArrayList<>(args.length);
+            for (Object arg : args) key.add(classOf(arg));
+
+            final Target target = resolved.get(key);
+            if (target != null) return target;
+
+            final Target found = new Target(
+                this, key.toArray(new Class<?>[0]), resolve(caller, args)
+            );
+            resolved.putIfAbsent(key, found);
+            return found;
+        }
+
+        private Object call(
+            Interpreter caller, Target target, Object[] args
+        ) {
+            final Events.JavaCall event = 
+                Events.INTEROP.isEnabled() ? new Events.JavaCall() : null;
+            if (event != null) event.begin();
+
+            try { return (Object) target.handle.invokeExact(args); }
+
+            // Catch-all error handling. Needs more work to be useful.
+            catch (Throwable e) {
+                throw caller.error("Invocation error: %s\nMessage: %s",
+                    name, e.getMessage());
+            }
+            finally {
+                if (event != null) {
+                    event.owner = owner;
+                    event.method = name;
+                    event.commit();
+                }
+            }
+        }
+
+        // Finds the overload to call for the given arguments.
+        private MethodHandle resolve(Interpreter caller, Object[] args) {
+            final Class<?>[] classes = new Class<?>[args.length];
+            for (int i = 0; i < args.length; i += 1) 
+                classes[i] = classOf(args[i]);
+
+            MethodHandle handle = null;
+
+            // Instance call on the first argument
+            if (args.length > 0 && args[0] != null && !name.equals("new") &&
+                owner.isInstance(args[0])) {
+                handle = find(owner.getMethods(), false,
+                    Arrays.copyOfRange(classes, 1, classes.length));
+            }
+
+            // Static call or constructor
+            if (handle == null) {
+                handle = name.equals("new") ?
+                    find(owner.getConstructors(), true, classes) :
+                    find(owner.getMethods(), true, classes);
+            }
+
+            // A method of the class object itself
+            if (handle == null) {
+                handle = find(Class.class.getMethods(), false, classes);
+                if (handle != null) handle = handle.bindTo(owner);
+            }
+
+            if (handle == null) {
+                final String types = Arrays.toString(classes);
+                throw caller.error("Invocation error: %s\nMessage: %s", name,
+                    "No method found for " + owner.getSimpleName() + "." +
+                    name + "(" + types.substring(1, types.length() - 1) + ")");
+            }
+
+            return handle
+                .asType(MethodType.genericMethodType(args.length))
+                .asSpreader(Object[].class, args.length);
+        }
+
+        // Finds the most specific executable that accepts the given argument
+        // classes and returns a handle to it with a parameter per argument.
+        // Variable arity executables are only used if nothing else applies.
+        private MethodHandle find(
+            Executable[] candidates, boolean statics, Class<?>[] classes
+        ) {
+            for (boolean varargs : new boolean[] { false, true }) {
+                Executable best = null;
+                for (Executable e : candidates) {
+                    if (e instanceof Method && (!e.getName().equals(name) ||
+                        Modifier.isStatic(e.getModifiers()) != statics))
+                        continue;
+                    if (applies(e, classes, varargs) &&
+                        (best == null || moreSpecific(e, best))) best = e;
+                }
+
+                if (best != null) try {
+                    return handle(best, classes.length, varargs);
+                }
+                catch (IllegalAccessException e) { return null; }
+            }
+            return null;
+        }
+    }
+
+    // MARK: Resolution
+    private static boolean applies(
+        Executable e, Class<?>[] classes, boolean varargs
+    ) {
+        final Class<?>[] params = e.getParameterTypes();
+        if (!varargs) {
+            if (params.length != classes.length) return false;
+            for (int i = 0; i < params.length; i += 1)
+                if (!accepts(params[i], classes[i])) return false;
+            return true;
+        }
+
+        final int fixed = params.length - 1;
+        if (!e.isVarArgs() || classes.length < fixed) return false;
+        for (int i = 0; i < fixed; i += 1)
+            if (!accepts(params[i], classes[i])) return false;
+
+        final Class<?> component = params[fixed].getComponentType();
+        for (int i = fixed; i < classes.length; i += 1)
+            if (!accepts(component, classes[i])) return false;
+        return true;
+    }
+
+    private static boolean moreSpecific(Executable a, Executable b) {
+        final Class<?>[] as = a.getParameterTypes(), bs = b.getParameterTypes();
+        if (as.length != bs.length) return false;
+        for (int i = 0; i < as.length; i += 1)
+            if (!box(bs[i]).isAssignableFrom(box(as[i]))) return false;
+        return true;
+    }
+
+    // Primitive parameters accept their own wrapper class, and any other
+    // parameter accepts null, which is given the class null here.
+    private static boolean accepts(Class<?> param, Class<?> arg) {
+        return arg == null ?
+            !param.isPrimitive() :
+            box(param).isAssignableFrom(arg);
+    }
+
+    private static MethodHandle handle(Executable e, int arity, boolean varargs)
+        throws IllegalAccessException {
+        final MethodHandle handle = e instanceof Method ?
+            lookup.unreflect((Method) e) :
+            lookup.unreflectConstructor((Constructor<?>) e);
+
+        if (!varargs) return handle.asFixedArity();
+
+        // Collect the trailing arguments into the array the method expects.
+        final Class<?>[] params = e.getParameterTypes();
+        return handle.asFixedArity().asCollector(
+            params[params.length - 1], arity - (params.length - 1)
+        );
+    }
+
+    private static Class<?> classOf(Object object) {
+        return object == null ? null : object.getClass();
+    }
+
+    private static Class<?> box(Class<?> c) {
+        if (!c.isPrimitive()) return c;
+        return MethodType.methodType(c).wrap().returnType();
+    }
+}
@@ -6,18 +6,22 @@ import static smg.interpreter.Calculations.*;
 import smg.interpreter.Capture.F;
 import smg.interpreter.Capture.F0;
 
-import java.beans.Expression;
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 
@@ -30,16 +34,21 @@ public class Interpreter {
     // any one time during execution namely the global scope. Different 
     // variables can have the same name as long as they're stored in different
     // scopes. This is what is known in language design as 'shadowing'.
-    private final LinkedList<Map<String, Object>> scopes;
+    // Scopes other than the global scope are usually Frames, whose locals can 
+    // be accessed directly by slot once the program has been resolved.
+    private final ArrayList<Map<String, Object>> scopes;
 
     // The AST representation of the code we have to execute.
     private final NodeProgram program;
 
     // The last value evaluated by an expression over the course of execution.
-    private Object lastResult;
+    // Compiled code may leave it unboxed, as Frame.LONG or Frame.DOUBLE with
+    // the bits of the number in lastBits.
+    Object lastResult;
+    long lastBits;
 
     // A flag to store the current jump instruction. Set to null when consumed.
-    private JumpOp jump = null;
+    JumpOp jump = null;
 
     // BigDecimal mode makes sure any values that go into or out of externally
     // defined functions are represented in BigDecimal format. This is mainly 
@@ -47,7 +56,7 @@ public class Interpreter {
     private boolean bigDecimalMode = false;
 
     // Tracks the current line number of execution.
-    private int line = 0;
+    int line = 0;
 
     // When interpretations are chained together, line numbers tend to reset 
     // between them. An offset can help keep line numbers consistent in error
@@ -57,9 +66,62 @@ public class Interpreter {
     // Contstructors
     public Interpreter(String code) { this(code, new HashMap<>()); }
     public Interpreter(String code, Map<String, Object> vars) {
-        program = new Parser(code).parse();
-        scopes = new LinkedList<>(List.of(new HashMap<>(vars)));
+        this(ScriptCache.shared().get(code), vars);
     }
+
+    // Scripts can be shared between interpreters, which saves parsing them
+    // every time. See CompiledScript.
+    public Interpreter(CompiledScript script) { this(script, new HashMap<>()); }
+    public Interpreter(CompiledScript script, Map<String, Object> vars) {
+        this(script.program, vars);
+    }
+
+    // Interpreters on other threads can share the same globals, under a scope
+    // of this interpreter's own that starts out with the given variables.
+    public Interpreter(
+        CompiledScript script, Map<String, Object> vars, SharedGlobals globals
+    ) {
+        this(script.program, vars);
+        shared = globals;
+        scopes.add(0, globals);
+    }
+
+    Interpreter(NodeProgram p, Map<String, Object> vars) {
+        program = p;
+        scopes = new ArrayList<>(List.of(new HashMap<>(vars)));
+    }
+
+    // A worker for a parallel loop. It sees the scopes of its parent as they
+    // are when the loop starts, and keeps to the same settings and limits.
+    // Its steps are taken from the budget shared by the loop's workers.
+    Interpreter(Interpreter parent, AtomicLong steps) {
+        program = parent.program;
+        scopes = new ArrayList<>(parent.scopes);
+        outer = scopes.size();
+        made = Collections.newSetFromMap(new IdentityHashMap<>());
+        rebound = new IdentityHashMap<>();
+        for (String name : builtins.keySet())
+            rebound.put(parent.builtins.get(name), builtins.get(name));
+        if (parent.rebound != null) {
+            for (Map.Entry<Object, Object> e : parent.rebound.entrySet())
+                rebound.put(e.getKey(), rebound.get(e.getValue()));
+        }
+        shared = parent.shared;
+        forkJoinPool = parent.forkJoinPool;
+        bigDecimalMode = parent.bigDecimalMode;
+        lineOffset = parent.lineOffset;
+        line = parent.line;
+        stepLimit = parent.stepLimit;
+        budget = steps;
+        timeout = parent.timeout;
+        deadline = parent.deadline;
+        callDepth = parent.callDepth;
+        callSites = Arrays.copyOf(parent.callSites, parent.callSites.length);
+        callLines = Arrays.copyOf(parent.callLines, parent.callLines.length);
+    }
+    // Whether this interpreter was created for the given script.
+    boolean runs(CompiledScript script) { return program == script.program; }
+
     public static Interpreter from(String code) {
         return new Interpreter(code);
     }
@@ -70,9 +132,9 @@ public class Interpreter {
      * an error is thrown
      */
     public void setVar(String key, Object value) {
-        findVar(key)
-            .orElseThrow(() -> error("Undefined variable '%s'", key))
-            .put(key, value);
+        final Map<String, Object> scope = lookup(key);
+        if (scope == null) throw error("Undefined variable '%s'", key);
+        assignable(scope).put(key, value);
     }
     
     /**
@@ -81,19 +143,61 @@ public class Interpreter {
      * lives in an earlier scope, this is what is known as 'shadowing'.
      */
     public void defineVar(String key, Object value) {
-        if (scopes.getLast().containsKey(key)) 
+        if (currentScope().containsKey(key) && !builtin(key)) 
             throw error("Redefining an existing variable");
-        scopes.getLast().put(key, value);
+        currentScope().put(key, value);
+    }
+
+    // Builtins can be redefined, so that adding one never breaks scripts
+    // that already declare a variable of the same name.
+    private boolean builtin(String key) {
+        final Object value = builtins.get(key);
+        return value != null && currentScope().get(key) == value;
     }
 
     public void setOrDefine(String key, Object value) {
-        findVar(key).orElse(scopes.getLast()).put(key, value);
+        final Map<String, Object> scope = lookup(key);
+        (scope == null ? currentScope() : scope).put(key, value);
     }
 
     @SuppressWarnings("unchecked")
-    public <T> T getVar(String key) {
-        return (T) findVar(key)
-            .orElseThrow(() -> error("Variable %s is undefined", key)).get(key);
+    public <T> T getVar(String key) { return (T) flat(variable(key)); }
+
+    // Variables as they are stored, which may be unflattened ropes.
+    Object variable(String key) {
+        final Map<String, Object> scope = lookup(key);
+        if (scope == null) throw error("Variable %s is undefined", key);
+        final Object value = scope.get(key);
+        if (rebound == null || !(value instanceof F)) return value;
+        return rebound.getOrDefault(value, value);
+    }
+
+    // Resolved variables are read and written directly through their frame 
+    // slots. Everything else falls back on lookups by name.
+    Object getVar(NodeTerm.Variable var) {
+        if (var.slot < 0) return variable(var.var);
+        return frame(var.depth).value(var.slot);
+    }
+
+    void setVar(NodeTerm.Variable var, Object value) {
+        if (var.slot < 0) setVar(var.var, value);
+        else assignable(var.depth).values[var.slot] = value;
+    }
+
+    // Defines a resolved variable in the current frame, or by name otherwise.
+    void defineVar(String key, int slot, Object value) {
+        if (slot < 0) { defineVar(key, value); return; }
+
+        definable(slot).values[slot] = value;
+    }
+
+    // The current frame, once it is certain that the given slot in it has not
+    // been defined yet.
+    Frame definable(int slot) {
+        final Frame frame = frame(0);
+        if (frame.values[slot] != Frame.UNDEFINED) 
+            throw error("Redefining an existing variable");
+        return frame;
     }
 
     private static Set<String> getMethods(Class<?> c) {
@@ -106,102 +210,370 @@ public class Interpreter {
         return methods;
     }
 
-    private F integrateMethod(String name, Class<?> c) {
-        return a -> {
-        try {
-            // If there are no arguments or the first arg is null or the method
-            // is "new" then it is a static call.
-            if (a.length == 0 || a[0] == null || name == "new");
-
-            // Otherwise if the first arg class is a subclass of our class we
-            // attempt an instance method call.
-            else if (c.isAssignableFrom(a[0].getClass())) {
-                final Object[] args = Arrays.copyOfRange(a, 1, a.length);
-                try {
-                    return new Expression(a[0], name,args).getValue();
-                }
-
-                catch (Exception e) {
-                    // Otherwise, or if it does not succeed,
-                    // we attempt a static call.
-                }
-            }
-
-            // Static Call.
-            return new Expression(c, name, a).getValue();
-        }
-
-        // Catch-all error handling. Needs more work to be useful.
-        catch (Exception e) { 
-            e.printStackTrace();
-            throw error( "Invocation error: %s\nMessage: %s", 
-            name, e.getMessage()); 
-        }};
-    }
-    
+    // Every public method of each class is made callable from scripts. See 
+    // Interop for how calls are resolved.
     public void integrateClasses(Class<?>... cs) {
         for (Class<?> c : cs ) {
             final Map<String, F> fs = new HashMap<>();
             for (String name : getMethods(c)) 
-                fs.put(name, integrateMethod(name, c));
+                fs.put(name, new Interop.JavaMethod(this, c, name));
 
             getGlobals().put(c.getSimpleName(), fs);
         }
     }
 
     // Report if a given variable exists.
-    public boolean defined(String key) { return findVar(key).isPresent(); }
+    public boolean defined(String key) { return lookup(key) != null; }
 
     // Find and retrieve a given variable. If not fonud return an empty Optional
     public Optional<Map<String, Object>> findVar(String key) {
-        Iterator<Map<String, Object>> itr = scopes.descendingIterator();
-        while (itr.hasNext()) {
-            final Map<String, Object> scope = itr.next();
-            if (scope.containsKey(key)) return Optional.of(scope);
+        return Optional.ofNullable(lookup(key));
+    }
+
+    // Find the scope that holds a given variable, or null if there is none.
+    private Map<String, Object> lookup(String key) {
+        for (int i = scopes.size() - 1; i >= 0; i -= 1) {
+            final Map<String, Object> scope = scopes.get(i);
+            if (scope.containsKey(key)) return scope;
         }
 
-        return Optional.empty();
+        return null;
+    }
+
+    // MARK: Parallel Workers
+    // Workers of parallel loops share the scopes of their parent with every
+    // other worker, so they may only assign to variables of their own: those
+    // in the frames they enter and in the captures of functions made by the
+    // current iteration. The scopes below `outer` belong to the parent. Shared
+    // globals are safe to assign to from any thread, unless isolated. In the
+    // same way, they may only change the lists and maps the current iteration
+    // made, as any other may be seen by other workers too.
+    private int outer = -1;
+    private Set<Object> made = null;
+
+    // Builtins read by workers are their own rather than their parent's, so
+    // that exists() and the like see the variables of the iteration.
+    private Map<Object, Object> rebound = null;
+
+    private Map<String, Object> assignable(Map<String, Object> scope) {
+        if (outer < 0 || scope == shared || made.contains(scope)) return scope;
+        if (scope instanceof Frame) {
+            for (int i = scopes.size() - 1; i >= outer; i -= 1)
+                if (scopes.get(i) == scope) return scope;
+        }
+        throw outerAssignment();
+    }
+
+    Frame assignable(int depth) {
+        if (outer >= 0 && scopes.size() - 1 - depth < outer) 
+            throw outerAssignment();
+        return frame(depth);
+    }
+
+    private SmgException outerAssignment() {
+        return error("Cannot assign to variables from outside a parallel loop");
+    }
+
+    // Records a list or map made by the current iteration, if any.
+    <T> T own(T container) {
+        if (made != null) made.add(container);
+        return container;
+    }
+
+    private <T> T changeable(T container) {
+        if (outer < 0 || made.contains(container)) return container;
+        throw error("Cannot change lists or maps from outside a parallel loop");
     }
 
     // Global scope is special and should never be popped off. It is useful to
-    // expose it so different instances can share variables and data.
-    public Map<String, Object> getGlobals() { return scopes.getFirst(); }
+    // expose it so different instances can share variables and data. Those
+    // running on different threads should share them through SharedGlobals.
+    // Strings the script has built up are flattened before the host sees them.
+    public Map<String, Object> getGlobals() {
+        final Map<String, Object> globals = globalScope();
+        final List<String> ropes = new ArrayList<>();
+        for (Map.Entry<String, Object> e : globals.entrySet()) {
+            if (e.getValue() instanceof Rope) ropes.add(e.getKey());
+        }
+        for (String key : ropes) globals.put(key, flat(globals.get(key)));
+        return globals;
+    }
+    private Map<String, Object> globalScope() { return scopes.get(0); }
+
+    // The globals shared with other interpreters, if any
+    private SharedGlobals shared = null;
 
     // Scopes are popped on and off as execution switches between blocks of
     // statements.
-    private void enterScope() { enterScope(new HashMap<>()); }
-    private void enterScope(Map<String, Object> scope) { scopes.add(scope); }
-    private void exitScope() { scopes.removeLast(); }
+    void enterScope(String[] locals) { enterScope(new Frame(locals)); }
+    void enterScope(Map<String, Object> scope) { scopes.add(scope); }
+    void exitScope() { scopes.remove(scopes.size() - 1); }
+    private Map<String, Object> currentScope() { 
+        return scopes.get(scopes.size() - 1); 
+    }
+
+    // The frame a given number of scopes below the current one.
+    Frame frame(int depth) {
+        return (Frame) scopes.get(scopes.size() - 1 - depth);
+    }
+
+    // Set to record where the time of each run goes. See Profiler.
+    private Profiler profiler = null;
 
     // Miscellanea
+    public void setProfiler(Profiler p) { profiler = p; }
+    public Profiler getProfiler() { return profiler; }
     public void setBigDecimalMode(boolean on) { bigDecimalMode = on; }
     public void setLineOffset(int amount) { lineOffset = amount; }
-    public Object getLastResult() { return lastResult; }
+
+    // The pool that parallel loops run on
+    private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+    public void setForkJoinPool(ForkJoinPool pool) { forkJoinPool = pool; }
+
+    // MARK: Limits
+    // A run can be bounded by the number of steps it takes and by how long it
+    // takes. A step is one iteration of a loop or one function call, which is
+    // where both limits are checked, so straight-line code and calls into Java
+    // are never interrupted. The clock is only read every CLOCK_STEPS steps.
+    // Exceeding either limit throws a LimitExceededException.
+    private static final int CLOCK_STEPS = 256;
+    private long stepLimit = Long.MAX_VALUE, timeout = 0, deadline = 0;
+
+    // Counted over the last run, whether limits are set or not
+    private long iterations = 0, calls = 0;
+
+    // The steps left to the workers of a parallel loop, which all of them
+    // take from at once. Null for workers without a step limit, and for
+    // interpreters that are not workers, which count their own steps.
+    private AtomicLong budget = null;
+
+    public void setStepLimit(long steps) { 
+        stepLimit = steps > 0 ? steps : Long.MAX_VALUE; 
+    }
+    public void setTimeout(Duration duration) { 
+        timeout = duration == null ? 0 : duration.toNanos(); 
+    }
+    public long getIterations() { return iterations; }
+    public long getCalls() { return calls; }
+    public long getSteps() { return iterations + calls; }
+
+    void countIteration() { iterations += 1; checkLimits(1); }
+    void countCall() { calls += 1; checkLimits(1); }
+
+    // Adds the steps taken by the workers of a parallel loop, which have
+    // already been taken from the budget of a worker.
+    void countSteps(long workerIterations, long workerCalls) {
+        iterations += workerIterations;
+        calls += workerCalls;
+        checkLimits(0);
+    }
+
+    // The budget for the workers of a parallel loop started by this
+    // interpreter. Those of nested loops share the budget of the outer one.
+    AtomicLong stepBudget() {
+        if (budget != null || stepLimit == Long.MAX_VALUE) return budget;
+        return new AtomicLong(stepLimit - getSteps());
+    }
+
+    private void checkLimits(long taken) {
+        final long steps = iterations + calls;
+        final boolean over = budget == null ? steps > stepLimit :
+            budget.addAndGet(-taken) < 0;
+        if (over) throw new LimitExceededException(
+            lineNumber(), callStack(), callLines(),
+            "Step limit of %d exceeded", stepLimit
+        );
+        if (timeout > 0 && steps % CLOCK_STEPS == 0 && 
+            System.nanoTime() - deadline > 0) 
+            throw new LimitExceededException(
+                lineNumber(), callStack(), callLines(),
+                "Timeout of %d ms exceeded", timeout / 1_000_000
+            );
+    }
+
+    /**
+     * Compiles the program into closures, which are then used instead of 
+     * walking the tree whenever they are run. Anything the Compiler does not 
+     * support is still interpreted. Programs are only compiled once, and the
+     * results are kept on the program for every interpreter running it.
+     */
+    public Interpreter compile() {
+        Compiler.compile(program);
+        return this;
+    }
+    public Object getLastResult() { return flat(result()); }
+
+    // The last result, boxed if it was left unboxed.
+    Object result() {
+        if (lastResult == Frame.LONG) return Long.valueOf(lastBits);
+        if (lastResult == Frame.DOUBLE) 
+            return Double.valueOf(Double.longBitsToDouble(lastBits));
+        return lastResult;
+    }
     public String toString() { return String.valueOf(program); }
     public int lineNumber() { return line + lineOffset; }
-    private String line() { return " (line: " + (line + lineOffset) + ")"; }
-    RuntimeException error(String message, Object... args) {
-        return new RuntimeException(String.format(message + line(), args));
+
+    // Errors are formatted lazily, see SmgException.
+    SmgException error(String message, Object... args) {
+        return new SmgException(
+            lineNumber(), callStack(), callLines(), message, args
+        );
+    }
+
+    // MARK: Call Stack
+    // The calls to script functions in progress, and the lines they were made
+    // on. Only kept for the script stack traces of errors.
+    private NodeTerm.Call[] callSites = new NodeTerm.Call[16];
+    private int[] callLines = new int[16];
+    private int callDepth = 0;
+
+    private void enterCall(NodeTerm.Call call) {
+        if (callDepth == callSites.length) {
+            callSites = Arrays.copyOf(callSites, callDepth * 2);
+            callLines = Arrays.copyOf(callLines, callDepth * 2);
+        }
+        callSites[callDepth] = call;
+        callLines[callDepth] = line;
+        callDepth += 1;
+    }
+
+    private NodeTerm.Call[] callStack() { 
+        return Arrays.copyOf(callSites, callDepth); 
+    }
+
+    private int[] callLines() {
+        final int[] lines = Arrays.copyOf(callLines, callDepth);
+        for (int i = 0; i < lines.length; i += 1) lines[i] += lineOffset;
+        return lines;
     }
     
     // MARK: Run Scope
     public Object run() {
+        iterations = calls = 0;
+        callDepth = 0;
+        deadline = System.nanoTime() + timeout;
+
+        // Runs are recorded along with their result, or the exception thrown.
+        final Events.Run event = new Events.Run();
+        event.begin();
+        if (shared != null) scopes.set(0, shared.begin());
+        Object result = null;
+        try {
+            result = execute();
+            if (shared != null) shared.commit(scopes.get(0));
+            return result;
+        }
+        catch (RuntimeException | Error e) {
+            result = e;
+            throw e;
+        }
+        finally {
+            if (shared != null) scopes.set(0, shared);
+            event.iterations = iterations;
+            event.calls = calls;
+            event.resultType = javaType(result);
+            event.commit();
+        }
+    }
+
+    private Object execute() {
         // Main entry point of execution. Since the program has already been 
         // parsed into a tree, there's little setup for us to do.
 
         // 1. Add some important standard library functions as variables. Notice
         //    that these can be overwritten by users during normal execution.
-        setOrDefine("exists", (F) a -> defined((String) a[0]));
-        setOrDefine("global", (F) a -> getGlobals().put((String) a[0], null));
-        setOrDefine("type", (F) a -> javaType(a[0]));
+        //    Interpreters from a pool have had them since they were reset.
+        if (seeded) seeded = false;
+        else defineBuiltins();
 
         // 2. Run the program.
         runProgram();
 
         // 3. Return the last result evaluated 
-        return lastResult;
+        return flat(result());
     }
     
+    // The standard library functions, created once per interpreter and
+    // defined again at the start of every run.
+    private final Map<String, F> builtins = Map.of(
+        "exists", a -> defined((String) a[0]),
+        "global", a -> assignable(globalScope()).put((String) a[0], null),
+        "type", a -> javaType(a[0]),
+        "concurrentList", a -> ParallelLoop.list(),
+        "concurrentSum", a -> ParallelLoop.sum(),
+        "range", a -> Sequence.range(this, a),
+        "sequence", a -> Sequence.sequence(a[0])
+    );
+
+    // The original builtins replace any variable of the same name on every
+    // run, as they always have. Variables the host has defined keep their
+    // values when a later builtin has the same name, so that adding builtins
+    // never breaks hosts.
+    private static final Set<String> ORIGINAL_BUILTINS =
+        Set.of("exists", "global", "type");
+
+    private void defineBuiltins() {
+        for (Map.Entry<String, F> builtin : builtins.entrySet()) {
+            final String name = builtin.getKey();
+            if (ORIGINAL_BUILTINS.contains(name)) 
+                setOrDefine(name, builtin.getValue());
+            else if (!defined(name)) 
+                currentScope().put(name, builtin.getValue());
+        }
+    }
+
+    // MARK: Reset
+    // Returns the interpreter to the state of a new one with the given
+    // variables, for InterpreterPool. The builtins are seeded straight into
+    // the new scope, and its settings go back to their defaults.
+    void reset(Map<String, Object> vars) {
+        clear();
+        if (shared != null) scopes.add(shared);
+        scopes.add(new HashMap<>(vars));
+        defineBuiltins();
+        seeded = true;
+    }
+
+    // Whether the builtins were defined by reset() and not yet used by a run
+    private boolean seeded = false;
+
+    // Lets go of everything the last run left behind, so that an idle
+    // interpreter holds on to no script data.
+    void clear() {
+        scopes.clear();
+        seeded = false;
+        lastResult = null;
+        lastBits = 0;
+        jump = null;
+        line = 0;
+        Arrays.fill(callSites, 0, callDepth, null);
+        callDepth = 0;
+        iterations = calls = 0;
+        profiler = null;
+        bigDecimalMode = false;
+        lineOffset = 0;
+        stepLimit = Long.MAX_VALUE;
+        timeout = 0;
+        forkJoinPool = ForkJoinPool.commonPool();
+    }
+
+    // Runs one iteration of a parallel loop in a worker, and returns its
+    // result. Iterations can be cut short with continue, but not broken out of.
+    Object runIteration(NodeStmt.ParallelForEach loop, Object item) {
+        countIteration();
+        lastResult = null;
+        made.clear();
+        enterScope(loop.locals);
+        frame(0).values[0] = item;
+        runScope(loop.scope);
+        exitScope();
+
+        if (jump == JumpOp.CONTINUE) jump = null;
+        else if (jump != null) 
+            throw error("Cannot break or return out of a parallel loop");
+        return result();
+    }
+
     // Running the program itself is quite is easy. Simply run every statement
     // we see in order.
     private void runStmts(List<NodeStmt> stmts) {
@@ -216,15 +588,33 @@ public class Interpreter {
 
     // Scopes nodes run in the same way that programs do, except wrapped in a 
     // scope of their own. Any variables declared in them disappear afterwards.
-    private void runScope(NodeScope scope) {  
+    void runScope(NodeScope scope) {  
         if (scope == null) return;
-        enterScope();
+        if (scope.code != null && profiler == null) { 
+            scope.code.run(this); 
+            return; 
+        }
+        enterScope(scope.locals);
         runStmts(scope.stmts);
         exitScope();
     }
 
     // MARK: Run Statement
-    private void runStmt(NodeStmt s) { if (s != null) s.host(stmtVisitor); }
+    void runStmt(NodeStmt s) { 
+        if (s == null) return;
+        if (profiler != null) profile(s);
+        else if (s.code != null) s.code.run(this);
+        else s.host(stmtVisitor); 
+    }
+
+    // Profiled statements are always visited, so that the statements in them
+    // are profiled too.
+    private void profile(NodeStmt s) {
+        profiler.enter(s);
+        try { s.host(stmtVisitor); }
+        finally { profiler.exit(); }
+    }
+
     private final StmtVisitor stmtVisitor = new StmtVisitor(this);
     class StmtVisitor implements NodeStmt.Visitor {
 
@@ -238,10 +628,10 @@ public class Interpreter {
             // To access and update a property of an object (the parent), said 
             // object must first be obtained and evaluated.
             final NodeTerm.ArrayAccess term = (NodeTerm.ArrayAccess) a.term;
-            final Object parent = runTerm(term.array);
+            final Object parent = flat(runTerm(term.array));
 
             // Additionally, the index must also be evaluated.
-            final Object index = runExpr(term.index);
+            final Object index = flat(runExpr(term.index));
 
             // The index can be a string only if the parent is a map, in which
             // case it works just like a property access.
@@ -249,8 +639,8 @@ public class Interpreter {
                 final Map<String, Object> mlhs = (Map<String, Object>) parent;
                 final String i = (String) index;
                 final Object lhs = mlhs.get(i);
-                lastResult = calcAssign(intr, a.op, lhs, runExpr(a.expr));
-                mlhs.put(i, lastResult);
+                lastResult = calcAssign(intr, a, lhs, runExpr(a.expr));
+                changeable(mlhs).put(i, flat(lastResult));
             }
 
             // Otherwise, if the index is a number and the parent is a List,
@@ -261,8 +651,8 @@ public class Interpreter {
                 final List<Object> llhs = (List<Object>) parent;
                 final int i = ((Number) index).intValue();
                 final Object lhs = llhs.get(i);
-                lastResult = calcAssign(intr, a.op, lhs, runExpr(a.expr));
-                llhs.set(i, lastResult);
+                lastResult = calcAssign(intr, a, lhs, runExpr(a.expr));
+                changeable(llhs).set(i, flat(lastResult));
             }
             
             // Otherwise, if the index is a number and the parent is a string,
@@ -275,13 +665,13 @@ public class Interpreter {
                 final int i = ((Number) index).intValue();
     
                 final char newChar = castValue(intr, "char", 
-                    calcAssign(intr, a.op, slhs.charAt(i), runExpr(a.expr)
+                    calcAssign(intr, a, slhs.charAt(i), runExpr(a.expr)
                 ));
 
                 lastResult = slhs.substring(0, i) + String.valueOf(newChar) +
                     (i >= slhs.length() ? "" : slhs.substring(i + 1));
 
-                setVar(((NodeTerm.Variable) a.term).var, lastResult);
+                setVar((NodeTerm.Variable) a.term, lastResult);
             }
 
             // Otherwise, this is not a valid array access assignment.
@@ -309,10 +699,10 @@ public class Interpreter {
             // assignment.
             final Map<String, Object> mlhs = (Map<String, Object>) parent;
             final Object lhs = mlhs.get(term.prop);
-            lastResult = calcAssign(intr, a.op, lhs, runExpr(a.expr));
+            lastResult = calcAssign(intr, a, lhs, runExpr(a.expr));
 
             // ... and place this value back into the map.
-            mlhs.put(term.prop, lastResult);
+            changeable(mlhs).put(term.prop, flat(lastResult));
         }
 
         public void visit(NodeStmt.Assign assign) {
@@ -326,14 +716,15 @@ public class Interpreter {
                 // ... in which case what we have to do is simple; evaluate the
                 // RHS (Right-Hand Side) and, according to the assignment 
                 // operator, set that result as the value of the variable.
-                lhs = getVar(((NodeTerm.Variable) assign.term).var);
-                value = calcAssign(intr, assign.op, lhs, runExpr(assign.expr));
+                final NodeTerm.Variable var = (NodeTerm.Variable) assign.term;
+                lhs = getVar(var);
+                value = calcAssign(intr, assign, lhs, runExpr(assign.expr));
                 
                 // Note that setVar() implicitly checks to see if the variable 
                 // is already defined at this point and will throw an error
                 // otherwise. To allow assignment to undeclared variables, use 
                 // a combination of defined() and define() here instead.
-                setVar(((NodeTerm.Variable) assign.term).var, value);
+                setVar(var, value);
                 lastResult = value;
             }
 
@@ -357,7 +748,7 @@ public class Interpreter {
 
         public void visit(NodeStmt.Declare decl) {
             final Object value = runExpr(decl.expr);
-            defineVar(decl.var, value);
+            defineVar(decl.var, decl.slot, value);
             lastResult = value;
         }
 
@@ -369,18 +760,23 @@ public class Interpreter {
         }
 
         public void visit(NodeStmt.TryCatch block) {
-            final int scopeCount = scopes.size();
+            final int scopeCount = scopes.size(), depth = callDepth;
             try {
                 runScope(block._try);
             }
             catch (Exception e) {
 
-                // Close all unclosed scopes in the case of an exception catch
+                // Close all unclosed scopes and calls in the case of an 
+                // exception catch
                 while (scopes.size() > scopeCount) exitScope();
+                callDepth = depth;
             
+                // Limits cannot be caught by scripts.
+                if (of(e, LimitExceededException.class)) 
+                    throw (LimitExceededException) e;
                 if (block._catch == null ) return;
-                enterScope();
-                if (block.err != null) defineVar(block.err, e);
+                enterScope(block.locals);
+                if (block.err != null) defineVar(block.err, 0, e);
                 runScope(block._catch);
                 exitScope();
             }
@@ -392,6 +788,7 @@ public class Interpreter {
         
         public void visit(NodeStmt.While loop) {
             while ((Boolean) runExpr(loop.expr)) {
+                countIteration();
                 runScope(loop.scope);
                 if (jump == JumpOp.RETURN) break;
                 else if (jump == JumpOp.CONTINUE) { jump = null; continue; }
@@ -399,27 +796,18 @@ public class Interpreter {
             }
         }
 
-        @SuppressWarnings("unchecked")
         public void visit(NodeStmt.ForEach loop) {
-            final Object object = runTerm(loop.list);
-            final Iterator<?> iterator;
-            if (of(object, Iterable.class)) {
-                iterator = ((Iterable<?>) object).iterator();
-            }
-            else if (of(object, Map.class)) {
-                iterator = ((Map<String, Object>) object).keySet().iterator();
-            }
-            else if (of(object, String.class)) {
-                iterator = ((String) object).chars().iterator();
-            }
-            else throw error("Invalid for loop list");
+            final Iterator<?> iterator = iterate(runTerm(loop.list));
             
             // Plot twist!!
             // For loops are actually while loops in disguise! Muhahaha! 
-            enterScope();
-            defineVar(loop.itr, null);
+            enterScope(loop.locals);
+            final Frame frame = frame(0);
+            final PrimitiveIterator.OfLong longs = longs(iterator);
             while (iterator.hasNext()) {
-                setVar(loop.itr, iterator.next());
+                countIteration();
+                if (longs != null) frame.set(0, Frame.LONG, longs.nextLong());
+                else frame.values[0] = iterator.next();
                 runScope(loop.scope);
                 if (jump == JumpOp.RETURN) break;
                 else if (jump == JumpOp.CONTINUE) { jump = null; continue; }
@@ -428,12 +816,20 @@ public class Interpreter {
             exitScope();
         }
 
+        // The result of a parallel loop is the list of the results of its
+        // iterations, in order.
+        public void visit(NodeStmt.ParallelForEach loop) {
+            final Iterator<?> iterator = iterate(runTerm(loop.list));
+            lastResult = ParallelLoop.run(intr, forkJoinPool, loop, iterator);
+        }
+
         public void visit(NodeStmt.For loop) {
             // Plot twist!!
             // For loops are actually while loops in disguise! Muhahaha! 
-            enterScope();
+            enterScope(loop.locals);
             runStmt(loop.init);
             while ((Boolean) runExpr(loop.cond)) {
+                countIteration();
                 runScope(loop.scope);
 
                 if (jump == JumpOp.RETURN) break;
@@ -446,10 +842,8 @@ public class Interpreter {
         }
 
         public void visit(NodeStmt.Function def) {
-            final Capture function = (Capture) exprVisitor.visit(
-                new NodeExpr.Lambda(def.params, def.body, line)
-            );
-            defineVar(def.name, function);
+            final Capture function = (Capture) exprVisitor.visit(def.lambda);
+            defineVar(def.name, def.slot, function);
             lastResult = function;
         }
 
@@ -469,6 +863,7 @@ public class Interpreter {
     Object runExpr(NodeExpr expr) {
         if (expr == null) return null;
         line = expr.line; 
+        if (expr.code != null) return expr.code.run(this);
         return expr.host(exprVisitor); 
     }
 
@@ -486,36 +881,54 @@ public class Interpreter {
         }
 
         public Object visit(NodeExpr.Binary node) {
-            return calcBinary(intr, node.op, 
-                node.lhs, node.rhs
-                // runTerm(node.lhs), 
-                // runTerm(node.rhs)
-            );
+            if (node.op == BinaryOp.And || node.op == BinaryOp.Or) 
+                return calcBinary(intr, node.op, node.lhs, node.rhs);
+            return calcBinary(intr, node, runTerm(node.lhs), runTerm(node.rhs));
         }
 
         public Capture visit(NodeExpr.Lambda def) {
-            final F function = (Object... args) -> {
-                enterScope();
-                for (int i = 0; i < def.params.size(); i += 1) {
-                    defineVar(def.params.get(i).param, 
-                        i < args.length && args[i] != null ? args[i] :
-                        runExpr(def.params.get(i)._default)
-                    );
-                }
+            final Capture.Body function = (in, args) -> in.call(def, args);
+            final Map<String, Object> variables = capture(def.free);
+            return new Capture(own(variables), function);
+        }
+    };
 
-                runScope(def.body);
-                exitScope();
+    // Runs the body of a script function, once its capture is in scope.
+    private Object call(NodeExpr.Lambda def, Object[] args) {
+        enterScope(def.locals);
+        for (int i = 0; i < def.params.size(); i += 1) {
+            final NodeParam param = def.params.get(i);
+            defineVar(param.param, param.slot, 
+                i < args.length && args[i] != null ? args[i] :
+                runExpr(param._default)
+            );
+        }
 
-                jump = null; // Clear jump flag
-                return lastResult;
-            };
+        runScope(def.body);
+        exitScope();
+
+        jump = null; // Clear jump flag
+        return result();
+    }
 
-            return new Capture(scopes, function);
+    // Copies the variables a function refers to from outside of itself, as
+    // they are when it is created. Those not defined yet are left to be
+    // looked up when it is called.
+    private Map<String, Object> capture(String[] names) {
+        final Map<String, Object> variables = new HashMap<>();
+        for (String name : names) {
+            final Map<String, Object> scope = lookup(name);
+            if (scope != null) variables.put(name, scope.get(name));
         }
-    };
+        return variables;
+    }
 
     // MARK: Run Term
-    Object runTerm(NodeTerm term) { return term.host(termVisitor); }
+    // Missing terms, which the parser leaves for some malformed expressions,
+    // are null values, so that using them is an error of the script.
+    Object runTerm(NodeTerm term) {
+        return term == null ? null : term.host(termVisitor);
+    }
     private final TermVisitor termVisitor = new TermVisitor(this);
     @SuppressWarnings("unchecked")
     class TermVisitor implements NodeTerm.Visitor {
@@ -528,7 +941,7 @@ public class Interpreter {
         public <T> T visit(NodeTerm.Literal<?> lit) { return (T) lit.lit; }
 
         public Object visit(NodeTerm.Variable var) { 
-            return getVar(var.var);
+            return getVar(var);
         }
 
         public Object visit(NodeTerm.PropAccess paccess) {
@@ -537,33 +950,23 @@ public class Interpreter {
         }
 
         public Object visit(NodeTerm.ArrayLiteral arr) {
-            final List<Object> items = new ArrayList<>(arr.items.size());
-            for (var expr : arr.items) items.add(runExpr(expr));
-            return items;
+            if (arr.constant != null) return own(arr.constant.copy());
+            final List<Object> items = new PersistentList();
+            for (var expr : arr.items) items.add(flat(runExpr(expr)));
+            return own(items);
         }
 
         public Object visit(NodeTerm.MapLiteral map) {
-            final Map<String, Object> values = new HashMap<>(map.items.size());
-            for (var e : map.items) values.put(e.key, runExpr(e.value));
-            return values;
+            if (map.constant != null) return own(map.constant.copy());
+            final Map<Object, Object> values = new PersistentMap();
+            for (var e : map.items) 
+                values.put(e.key, flat(runExpr(e.value)));
+            return own(values);
         }
 
         public Object visit(NodeTerm.ArrayAccess access) {
             final Object object = runTerm(access.array);
-            final Object i = runExpr(access.index);
-            if (of(i, String.class)) {
-                return accessProp(object, (String) i);
-            }
-            else if (longish(i) && of(object, List.class)) {
-                return ((List<?>) object).get(castValue(intr, "int", i));
-            }
-            else if (longish(i) && of(object, String.class)) {
-                return ((String) object).charAt(castValue(intr, "int", i));
-            }
-            
-            throw error("Invalid array access '%s'. Index is of type %s", 
-                access, javaType(i)
-            );
+            return accessIndex(access, object, runExpr(access.index));
         }
 
         public Object visit(NodeTerm.Expr expr) {
@@ -579,49 +982,140 @@ public class Interpreter {
             final Object f = runTerm(call.f);
             final Object[] argExprs = call.args.stream()
                 .map(a -> runExpr(a)).toArray();
+            return invoke(call, f, argExprs);
+        }
+
+        public Object visit(NodeTerm.Cast cast) {
+            final Object value = runTerm(cast.object);
+            return castValue(intr, cast.type.type, value);
+        }
+    };
+
+    // MARK: Shared Helpers
+    // Used by both the tree-walker and compiled code. 
+    @SuppressWarnings("unchecked")
+    Iterator<?> iterate(Object object) {
+        object = flat(object);
+        if (of(object, Sequence.class)) {
+            return ((Sequence) object).iterator(this);
+        }
+        else if (of(object, Iterable.class)) {
+            return ((Iterable<?>) object).iterator();
+        }
+        else if (of(object, Map.class)) {
+            return ((Map<String, Object>) object).keySet().iterator();
+        }
+        else if (of(object, String.class)) {
+            return ((String) object).chars().iterator();
+        }
+        throw error("Invalid for loop list");
+    }
+
+    // Calls a function on behalf of Java code, like the functions sequences
+    // are mapped and filtered with. There is no call node to put on the stack.
+    Object callback(Object f, Object... args) {
+        countCall();
+        if (!of(f, Capture.class)) return apply(null, f, args);
+
+        enterScope(((Capture) f).variables);
+        final Object value = ((Capture) f).invoke(this, args);
+        exitScope();
+        return value;
+    }
 
+    // Iterators that count in longs, like those of ranges, can be gone
+    // through without boxing. Loops keep their variable unboxed for them.
+    static PrimitiveIterator.OfLong longs(Iterator<?> iterator) {
+        return iterator instanceof PrimitiveIterator.OfLong ?
+            (PrimitiveIterator.OfLong) iterator : null;
+    }
+
+    // The call node, if there is one, caches how Java methods are resolved.
+    Object invoke(NodeTerm.Call call, Object f, Object[] argExprs) {
+        countCall();
+        if (profiler == null && !Events.CALLS.isEnabled()) 
+            return apply(call, f, argExprs);
+
+        final Events.Call event = new Events.Call();
+        final int at = line;
+        event.begin();
+        if (profiler != null) profiler.enter(call, at);
+        try { return apply(call, f, argExprs); }
+        finally { 
+            if (profiler != null) profiler.exit(); 
+            if (event.shouldCommit()) {
+                event.function = call.f.toString();
+                event.line = at + lineOffset;
+                event.commit();
+            }
+        }
+    }
+
+    private Object apply(NodeTerm.Call call, Object f, Object[] argExprs) {
             // Experimental
-            if (bigDecimalMode) {
-                for (int i = 0; i < argExprs.length; i += 1) {
-                    if (doublish(argExprs[i])) {
-                        argExprs[i] = BigDecimal.valueOf(
-                            (Double) castValue(intr, "double", argExprs[i])
-                        );
-                    }
+        if (bigDecimalMode) {
+            for (int i = 0; i < argExprs.length; i += 1) {
+                if (doublish(argExprs[i])) {
+                    argExprs[i] = BigDecimal.valueOf(
+                        (Double) castValue(this, "double", argExprs[i])
+                    );
                 }
             }
+        }
 
-            if (of(f, Capture.class)) {
-                enterScope(((Capture) f).variables);
-                final Object value = ((Capture) f).invoke(intr, argExprs);
-                exitScope();
-                return value;
-            }
-            else if (of(f, F.class)) {
-                final Object value = ((F) f).apply(argExprs);
-                
-                // Experimental
-                if (bigDecimalMode && of(value, BigDecimal.class)) {
-                    return castValue(intr, "double", value);
-                }
+        if (of(f, Capture.class)) {
+            enterScope(((Capture) f).variables);
+            enterCall(call);
+            final Object value = ((Capture) f).invoke(this, argExprs);
+            callDepth -= 1;
+            exitScope();
+            return value;
+        }
 
-                return value;
-            }
-            else if (of(f, F0.class)) {
-                ((F0) f).apply(argExprs);
-                return null;
-            }
+        // Functions not defined by the script only ever see strings.
+        for (int i = 0; i < argExprs.length; i += 1) 
+            argExprs[i] = flat(argExprs[i]);
+
+        if (of(f, F.class)) {
+            final Object value = of(f, Interop.JavaMethod.class) ?
+                ((Interop.JavaMethod) f).apply(this, call, argExprs) :
+                ((F) f).apply(argExprs);
             
-            throw error("Unsupported function type: " + javaType(f));
+            // Experimental
+            if (bigDecimalMode && of(value, BigDecimal.class)) {
+                return castValue(this, "double", value);
+            }
+
+            return value;
+        }
+        else if (of(f, F0.class)) {
+            ((F0) f).apply(argExprs);
+            return null;
         }
+        
+        throw error("Unsupported function type: " + javaType(f));
+    }
 
-        public Object visit(NodeTerm.Cast cast) {
-            final Object value = runTerm(cast.object);
-            return castValue(intr, cast.type.type, value);
+    Object accessIndex(NodeTerm.ArrayAccess access, Object object, Object i) {
+        object = flat(object);
+        i = flat(i);
+        if (of(i, String.class)) {
+            return accessProp(object, (String) i);
         }
-    };
+        else if (longish(i) && of(object, List.class)) {
+            return ((List<?>) object).get(castValue(this, "int", i));
+        }
+        else if (longish(i) && of(object, String.class)) {
+            return ((String) object).charAt(castValue(this, "int", i));
+        }
+        
+        throw error("Invalid array access '%s'. Index is of type %s", 
+            access, javaType(i)
+        );
+    }
 
-    private Object accessProp(Object object, String prop) {
+    Object accessProp(Object object, String prop) {
+        object = flat(object);
         if (of(object, Map.class)) {
             return ((Map<?, ?>) object).get(prop);
         }
@@ -637,6 +1131,9 @@ public class Interpreter {
 
             throw error("Invalid String property: " + prop);
         }
+        else if (of(object, Sequence.class)) {
+            return ((Sequence) object).property(this, prop);
+        }
         else if (of(object, List.class)) {
             switch (prop.toLowerCase()) {
                 case "size":
@@ -647,10 +1144,10 @@ public class Interpreter {
             throw error("Invalid List property: " + prop);
         }
 
-        throw error(String.format(
+        throw error(
             "Cannot access property '%s' of %s (type: %s)", 
             prop, object, javaType(object)
-        ));
+        );
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package smg.interpreter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of interpreters for one compiled script, so that services running
+ * the same script for every request do not create a new Interpreter (with
+ * its visitors, builtins and call stack) each time.
+ * <pre>
+ * final InterpreterPool pool = new InterpreterPool(script, 64);
+ * ...
+ * final Object result = pool.run(Map.of("claim", claim));
+ * </pre>
+ * Interpreters handed out by acquire() are reset to the state of a new one:
+ * a fresh global scope with the given variables, no last result and default
+ * settings. They must be given back with release() once their run is over,
+ * and not used afterwards. Up to the given number of idle interpreters are
+ * kept; any more are left to the garbage collector.
+ * <p>
+ * The pool itself is thread safe. Each interpreter is only ever used by the
+ * thread that acquired it.
+ */
+public final class InterpreterPool {
+
+    private final CompiledScript script;
+    private final ArrayBlockingQueue<Interpreter> idle;
+
+    public InterpreterPool(CompiledScript script, int capacity) {
+        this.script = script;
+        idle = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+    }
+
+    public Interpreter acquire() { return acquire(new HashMap<>()); }
+    public Interpreter acquire(Map<String, Object> vars) {
+        final Interpreter intr = idle.poll();
+        if (intr == null) return script.interpreter(vars);
+        intr.reset(vars);
+        return intr;
+    }
+
+    public void release(Interpreter intr) {
+        if (!intr.runs(script)) throw new IllegalArgumentException(
+            "Interpreter does not belong to this pool's script"
+        );
+        intr.clear();
+        idle.offer(intr);
+    }
+
+    // Runs the script once with an interpreter from the pool.
+    public Object run(Map<String, Object> vars) {
+        final Interpreter intr = acquire(vars);
+        try { return intr.run(); }
+        finally { release(intr); }
+    }
+
+    // The number of interpreters waiting to be reused.
+    public int idle() { return idle.size(); }
+}
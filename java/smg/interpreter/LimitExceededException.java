@@ -0,0 +1,23 @@
+package smg.interpreter;
+
+/**
+ * Thrown when a script takes more steps than its interpreter allows, or runs
+ * past its timeout. See Interpreter.setStepLimit() and setTimeout().
+ * <p>
+ * Scripts cannot catch it; their catch blocks are skipped, although finally
+ * blocks still run. Every later step of the same run throws it again.
+ */
+public class LimitExceededException extends SmgException {
+    private static final long serialVersionUID = 1L;
+
+    public LimitExceededException(int line, String format, Object... args) {
+        super(line, format, args);
+    }
+
+    LimitExceededException(
+        int line, NodeTerm.Call[] calls, int[] lines,
+        String format, Object... args
+    ) {
+        super(line, calls, lines, format, args);
+    }
+}
@@ -6,6 +6,9 @@ import java.util.stream.Collectors;
 // MARK: NodeScope
 class NodeProgram {
     final List<NodeStmt> stmts;
+
+    // Programs can be shared, so they are only ever compiled once.
+    volatile boolean compiled = false;
     NodeProgram(List<NodeStmt> s) { stmts = s; }
     public String toString() {
         return String.join("", 
@@ -17,6 +20,13 @@ class NodeProgram {
 
 class NodeScope {
     final List<NodeStmt> stmts;
+
+    // Names of the local variables declared directly in this scope, indexed by
+    // slot. Filled in by the Resolver.
+    String[] locals = Resolver.NONE;
+
+    // Set by the Compiler. When present, it is run instead of the statements.
+    Compiler.Code code = null;
     NodeScope(List<NodeStmt> s) { stmts = s; }
     public String toString() {
         return "{\n" + 
@@ -32,15 +42,27 @@ class NodeScope {
 
 // MARK: NodeStatement
 enum AssignOp { 
-    AssignEqual("="), AddEqual("+="), SubEqual("-="), 
-    MultiplyEqual("*="), DivideEqual("/="), ModEqual("%="), 
-    AndEqual("&="), OrEqual("|=");
+    AssignEqual("=", null), AddEqual("+=", BinaryOp.Add), 
+    SubEqual("-=", BinaryOp.Subtract), MultiplyEqual("*=", BinaryOp.Multiply), 
+    DivideEqual("/=", BinaryOp.Divide), ModEqual("%=", BinaryOp.Modulo), 
+    AndEqual("&=", BinaryOp.And), OrEqual("|=", BinaryOp.Or);
+
     private final String value;
-    private AssignOp(String v) { value = v; }
+
+    // The binary operation that an arithmetic assignment applies, if any.
+    final BinaryOp op;
+    private AssignOp(String v, BinaryOp o) { value = v; op = o; }
     public String toString() { return value; };
 }
 
 abstract class NodeStmt {
+
+    // Set by the Compiler. When present, it is run instead of visiting.
+    Compiler.Code code = null;
+
+    // The line the statement starts on. Set by the Parser.
+    int line = 0;
+
     static class If extends NodeStmt {
         final NodeExpr expr; final NodeScope succ, fail;
         If (NodeExpr e, NodeScope s, NodeScope f) { 
@@ -66,6 +88,7 @@ abstract class NodeStmt {
 
     static class ForEach extends NodeStmt {
         final String itr; final NodeTerm list; final NodeScope scope; 
+        String[] locals = Resolver.NONE;
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return String.format("for (%s in %s) %s", itr, list, scope); 
@@ -75,11 +98,27 @@ abstract class NodeStmt {
         }
     }
 
+    // A for-each loop whose iterations run at the same time. See ParallelLoop.
+    static class ParallelForEach extends NodeStmt {
+        final String itr; final NodeTerm list; final NodeScope scope; 
+        String[] locals = Resolver.NONE;
+        public void host(Visitor v) { v.visit(this); }
+        public String toString() { 
+            return String.format(
+                "parallel for (%s in %s) %s", itr, list, scope
+            ); 
+        } 
+        ParallelForEach(String i, NodeTerm l, NodeScope s) { 
+            itr = i; list = l; scope = s; 
+        }
+    }
+
     static class For extends NodeStmt {
         final Declare init; 
         final NodeExpr cond; 
         final NodeStmt inc; 
         final NodeScope scope;
+        String[] locals = Resolver.NONE;
         public void host(Visitor v) { v.visit(this);  }
         public String toString() { 
             return String.format("for (%s;%s;%s) %s", init, cond, inc, scope); 
@@ -98,6 +137,7 @@ abstract class NodeStmt {
 
     static class Declare extends NodeStmt {
         final String var; final NodeExpr expr;
+        int slot = -1;
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return String.format("let %s = %s", var, expr); 
@@ -107,12 +147,18 @@ abstract class NodeStmt {
     
     static class Assign extends NodeStmt {
         final NodeTerm term; final AssignOp op; final NodeExpr expr;
+
+        // Arithmetic assignments like 'a += b' are calculated as 'a + (b)'. 
+        // The equivalent binary node also keeps track of operand types.
+        final NodeExpr.Binary binary;
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return String.format("%s %s %s", term, op, expr); 
         }
         Assign(AssignOp o, NodeTerm q, NodeExpr e) { 
             op = o; term = q; expr = e; 
+            binary = o.op == null ? null : 
+                new NodeExpr.Binary(o.op, q, new NodeTerm.Expr(e), e.line);
         }
     }
 
@@ -146,6 +192,8 @@ abstract class NodeStmt {
         final String name;
         final List<NodeParam> params;
         final NodeScope body;
+        final NodeExpr.Lambda lambda;
+        int slot = -1;
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return String.format("function %s (%s) %s", 
@@ -156,14 +204,16 @@ abstract class NodeStmt {
                     .collect(Collectors.toList())), 
                 body); 
         } 
-        Function(String e, List<NodeParam> a, NodeScope b) { 
+        Function(String e, List<NodeParam> a, NodeScope b, int ln) { 
             name = e; params = a; body = b; 
+            lambda = new NodeExpr.Lambda(a, b, ln);
         }
     }
 
     static class TryCatch extends NodeStmt {
         final NodeScope _try, _catch, _finally;
         final String err;
+        String[] locals = Resolver.NONE;
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return String.format("try %s%s%s",
@@ -189,6 +239,7 @@ abstract class NodeStmt {
         void visit(While loop);
         void visit(For loop);
         void visit(ForEach loop);
+        void visit(ParallelForEach loop);
         void visit(Scope scope);
         void visit(Break statement);
         void visit(Continue statement);
@@ -200,6 +251,7 @@ abstract class NodeStmt {
 
 class NodeParam {
     final String param; final NodeExpr _default;
+    int slot = -1;
     NodeParam(String p, NodeExpr e) { param = p; _default = e; }
     public String toString() { 
         return param + (_default == null ? "" : (" = " + _default)); 
@@ -222,13 +274,26 @@ enum BinaryOp {
     public String toString() { return symbol; }
 }
 
+// The kinds of operands a binary expression has been evaluated with so far. 
+// Expressions start out uninitialised, pick a fast path for the first operands
+// they see, and fall back on the generic path for good once that no longer 
+// fits. See Calculations.calcBinary().
+enum BinarySpec { Uninitialised, LongLong, DoubleDouble, StringConcat, Generic }
+
 abstract class NodeExpr {
     public final int line;
     private NodeExpr(int ln) { line = ln;}
 
+    // Set by the Compiler. When present, it is run instead of visiting.
+    Compiler.Code code = null;
+
     public static final NodeExpr NULL = new NodeExpr.Term(NodeTerm.NULL, 0);
     static class Binary extends NodeExpr {
         final NodeTerm lhs, rhs; final BinaryOp op;
+
+        // Every state is valid for any operands, so racing updates between 
+        // threads sharing the same program are harmless.
+        BinarySpec spec = BinarySpec.Uninitialised;
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { 
             return String.format("%s %s %s", lhs, op, rhs); 
@@ -248,6 +313,7 @@ abstract class NodeExpr {
     static class Lambda extends NodeExpr {
         final List<NodeParam> params;
         final NodeScope body;
+        String[] locals = Resolver.NONE, free = Resolver.NONE;
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() {
             final String ps = String.join(", ", 
@@ -301,6 +367,10 @@ abstract class NodeTerm {
 
     static class ArrayLiteral extends NodeTerm {
         final List<NodeExpr> items;
+
+        // Set by the Folder when every item is a literal. Each evaluation
+        // returns a copy, which shares the list's tree until it is changed.
+        PersistentList constant = null;
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { return String.valueOf(items); } 
         public ArrayLiteral(List<NodeExpr> i) { items = i; }
@@ -308,6 +378,9 @@ abstract class NodeTerm {
 
     static class MapLiteral extends NodeTerm {
         final List<NodeMapEntry> items;
+
+        // Set by the Folder when every value is a literal. See ArrayLiteral.
+        PersistentMap constant = null;
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { 
             if (items.size() == 0) {
@@ -343,6 +416,10 @@ abstract class NodeTerm {
     
     static class Variable extends NodeTerm {
         public final String var;
+
+        // Set by the Resolver when the variable is a local that can be found
+        // at a fixed frame depth and slot. Otherwise it is looked up by name.
+        int depth = -1, slot = -1;
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { return var; } 
         public Variable(String v) { this.var = v; }
@@ -372,6 +449,7 @@ abstract class NodeTerm {
     
     static class Call extends NodeTerm {
         final NodeTerm f; final List<NodeExpr> args;
+        Interop.Target[] targets = Interop.NONE;
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { 
             return String.format("%s(%s)", f, String.join(", ", args.stream()
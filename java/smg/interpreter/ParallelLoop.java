@@ -0,0 +1,174 @@
+package smg.interpreter;
+
+import smg.interpreter.Capture.F;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Runs the iterations of a parallel loop on a fork-join pool:
+ *
+ *   parallel for (item in items) { price(item) }
+ *
+ * The items are split into a few ranges per thread of the pool. Each range is
+ * run by a worker interpreter of its own, which sees the variables of the
+ * loop's interpreter as they were when the loop started. Every iteration gets
+ * a frame of its own for the loop variable and anything declared in the body.
+ *
+ * The loop's result is the list of the results of its iterations, in the
+ * order of the items. Iterations cannot assign to variables from outside of
+ * the loop, including those captured by functions made outside of it, as
+ * they would race with each other. Nor can they change the elements or
+ * properties of any list or map but those they made themselves, as lists and
+ * maps are not thread safe either:
+ *
+ *   let out = [0, 0]
+ *   parallel for (i in [0, 1]) { out[i] = i }    // Error
+ *   parallel for (i in [0, 1]) { let m = {}; m.i = i; m }    // Fine
+ *
+ * Doing either is an error. Iterations can return their results instead, or
+ * add them to the thread safe lists and sums made by the concurrentList() and
+ * concurrentSum() builtins:
+ *
+ *   let totals = concurrentSum()
+ *   parallel for (item in items) { totals.add(price(item)) }
+ *   totals.get()
+ *
+ * Step limits hold for the loop as a whole. Its workers take their steps from
+ * what is left of the limit when the loop starts, so the loop is stopped as
+ * soon as they have taken all of it between them.
+ *
+ * Once an iteration throws, no more are started, and the exception of the
+ * first item that failed is thrown from the loop.
+ */
+final class ParallelLoop extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    // Shared by every range of the same loop
+    private static final class Loop {
+        final Interpreter parent;
+        final NodeStmt.ParallelForEach node;
+        final Object[] items, results;
+        final Throwable[] errors;
+        final int size;
+        final AtomicLong iterations = new AtomicLong();
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong budget;
+        volatile boolean failed = false;
+
+        Loop(
+            Interpreter p, NodeStmt.ParallelForEach n, Object[] i, int s
+        ) {
+            parent = p; node = n; items = i; size = s;
+            budget = p.stepBudget();
+            results = new Object[i.length];
+            errors = new Throwable[i.length];
+        }
+    }
+
+    private final Loop loop;
+    private final int from, to;
+
+    private ParallelLoop(Loop l, int f, int t) { loop = l; from = f; to = t; }
+
+    static Object run(
+        Interpreter intr, ForkJoinPool pool,
+        NodeStmt.ParallelForEach node, Iterator<?> iterator
+    ) {
+        final List<Object> items = new ArrayList<>();
+        iterator.forEachRemaining(items::add);
+
+        final int tasks = pool.getParallelism() * 4;
+        final int size = Math.max(1, (items.size() + tasks - 1) / tasks);
+        final Loop loop = new Loop(intr, node, items.toArray(), size);
+        if (items.size() > 0)
+            pool.invoke(new ParallelLoop(loop, 0, items.size()));
+
+        intr.countSteps(loop.iterations.get(), loop.calls.get());
+        for (Throwable error : loop.errors) {
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            else if (error instanceof Error) throw (Error) error;
+        }
+        return intr.own(new PersistentList(Arrays.asList(loop.results)));
+    }
+
+    protected void compute() {
+        if (to - from > loop.size) {
+            final int middle = (from + to) >>> 1;
+            invokeAll(
+                new ParallelLoop(loop, from, middle),
+                new ParallelLoop(loop, middle, to)
+            );
+            return;
+        }
+
+        final Interpreter worker = new Interpreter(loop.parent, loop.budget);
+        try {
+            for (int i = from; i < to && !loop.failed; i += 1) {
+                try {
+                    loop.results[i] = Types.flat(worker.runIteration(
+                        loop.node, loop.items[i]
+                    ));
+                }
+                catch (RuntimeException | StackOverflowError e) {
+                    loop.errors[i] = e;
+                    loop.failed = true;
+                }
+            }
+        }
+        finally {
+            loop.iterations.addAndGet(worker.getIterations());
+            loop.calls.addAndGet(worker.getCalls());
+        }
+    }
+
+    // MARK: Builtins
+    // A list that any number of iterations can add to at once. Its values are
+    // in the order they were added in.
+    static Map<String, F> list() {
+        final ConcurrentLinkedQueue<Object> values =
+            new ConcurrentLinkedQueue<>();
+        final Map<String, F> list = new HashMap<>();
+        list.put("add", a -> { values.add(a[0]); return null; });
+        list.put("values", a -> new PersistentList(values));
+        return list;
+    }
+
+    // A sum that any number of iterations can add to at once. It is a long
+    // until a double is added to it. Adding anything else is an error of the
+    // interpreter that tried, which may be any of the loop's workers.
+    static Map<String, Object> sum() {
+        final LongAdder longs = new LongAdder();
+        final DoubleAdder doubles = new DoubleAdder();
+        final LongAdder fractions = new LongAdder();
+        final Map<String, Object> sum = new HashMap<>();
+        final Capture.Body add = (intr, a) -> {
+            if (a[0] instanceof Long || a[0] instanceof Integer)
+                longs.add(((Number) a[0]).longValue());
+            else if (a[0] instanceof Number) {
+                doubles.add(((Number) a[0]).doubleValue());
+                fractions.increment();
+            }
+            else throw intr.error(
+                "Cannot add a value of type %s", Types.javaType(a[0])
+            );
+            return null;
+        };
+        sum.put("add", new Capture(Map.of(), add));
+        sum.put("get", (F) a -> fractions.sum() == 0 ?
+            (Object) longs.sum() : (Object) (longs.sum() + doubles.sum())
+        );
+        return sum;
+    }
+}
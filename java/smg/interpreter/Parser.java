@@ -9,14 +9,24 @@ import java.util.stream.Collectors;
 
 public class Parser {
     
-    private final List<Token> cache;
+    // Comments are only ever skipped, so their text is never built.
+    private static final Token COMMENT = Token.make("#", TokenType.Comment);
+
+    // Tokens looked ahead at are kept in a ring buffer, along with the line 
+    // the tokeniser was on after each of them. The buffer grows as needed.
+    private Token[] cache = new Token[16];
+    private int[] lines = new int[16];
+    private int head = 0, size = 0;
+
+    // How many tokens have been read from the tokeniser
+    private int tokens = 0;
+
     private final Tokeniser tokeniser;
     private NodeProgram root = null;
     private int line = 1;
 
     public Parser(Tokeniser t) {
         tokeniser = t;
-        cache = new LinkedList<>();
     }
     
     public Parser(String input) {
@@ -32,7 +42,11 @@ public class Parser {
     }
 
     public NodeProgram parse() {
+        final Events.Parse event = new Events.Parse();
+        event.begin();
+
         tokeniser.reset();
+        head = size = tokens = 0;
         line = 1;
         skipBlank();
         root = parseProgram();
@@ -40,6 +54,10 @@ public class Parser {
         if (peek() != Token.EOT) {
             throw error("Unexpected token at end of program: " + peek().value);
         }
+
+        event.sourceSize = tokeniser.toString().length();
+        event.tokens = tokens;
+        event.commit();
         return root;
     }
     
@@ -77,6 +95,7 @@ public class Parser {
     //   [Assign] | [Expr]
     private NodeStmt parseStatement() {
         final NodeTerm term; NodeStmt stmt;
+        final int start = line;
 
         // Declaration
         if ((stmt = parseDecl()) != null);
@@ -101,6 +120,7 @@ public class Parser {
 
         // By this point we should have parsed a statement. 
         // It could still be null if no statement can be parsed.
+        if (stmt != null) stmt.line = start;
         return stmt;
     }
     
@@ -123,8 +143,12 @@ public class Parser {
         expr = tryParse(parseExpr(), "Expected condition.");
         scope = tryParse(parseScope(), "Unparsable Scope.");
         if (tryConsume(Token.Else)) {
-            if (peek() == Token.If) 
-                scopeElse = new NodeScope(List.of(parseIf()));
+            if (peek() == Token.If) {
+                final int start = line;
+                final NodeStmt.If elseIf = parseIf();
+                elseIf.line = start;
+                scopeElse = new NodeScope(List.of(elseIf));
+            }
             else scopeElse = tryParse(parseScope(), "Expected else block.");
         }
         else scopeElse = null;
@@ -141,10 +165,17 @@ public class Parser {
         );
     }
     
-    // ForEach -> 'for' '(' [Qualifier] 'in' [Term] ')' [Scope]
+    // ForEach -> 'parallel'? 'for' '(' [Qualifier] 'in' [Term] ')' [Scope]
     // ForLoop -> 'for' '(' ([Assign] | [Decl])? ';' [Expr]? ';' 
     //     ([Assign] | [Expr])? ')' [Scope]
     private NodeStmt parseFor() {
+        final int start = line;
+
+        // 'parallel' is only a keyword in front of a loop, so that it can still
+        // be used as a name everywhere else.
+        final boolean parallel = peek().isAny(TokenType.Qualifier) && 
+            peek().value.equals("parallel") && peekNonBlank() == Token.For;
+        if (parallel) { consume(); skipBlank(); }
         if (!tryConsume(Token.For)) return null;
         
         // For Each
@@ -157,10 +188,12 @@ public class Parser {
             list = tryParse(parseTerm(), "Expected variable.");
             tryConsume(Token.CloseParen, "Expected ')'");
 
-            return new NodeStmt.ForEach(itr, list, 
-                tryParse(parseScope(), "Unparsable Scope.")
-            );
+            final NodeScope scope = tryParse(parseScope(), "Unparsable Scope.");
+            return parallel ? 
+                new NodeStmt.ParallelForEach(itr, list, scope) : 
+                new NodeStmt.ForEach(itr, list, scope);
         }
+        else if (parallel) throw error("Only for-in loops can be parallel");
 
         // Normal For
         else {
@@ -184,6 +217,10 @@ public class Parser {
             }
             else inc = null;
 
+            // The header statements are on the line the loop starts on.
+            if (init != null) init.line = start;
+            if (inc != null) inc.line = start;
+
             tryConsume(Token.CloseParen, "Expected ')'");
             return new NodeStmt.For(init, cond, inc, 
                 tryParse(parseScope(), "Unparsable Scope.")
@@ -216,11 +253,12 @@ public class Parser {
             !peekNonBlank(1).isAny(TokenType.Qualifier)) 
             return null;
 
+        final int currentline = line;
         tryConsume(Token.Function);
         return new NodeStmt.Function(parseVariable(), parseParams(), tryParse(
             parseScope(), 
             "Expected function body"
-        ));
+        ), currentline);
     }
 
     // ParamList -> '(' ([Param] (',' [Param])*)? ')'
@@ -605,23 +643,42 @@ public class Parser {
     }
 
     private Token peek(int offset) {
-        while (cache.size() <= offset) {
-            cache.add(tokeniser.nextToken());
-        }
-        return cache.get(offset);
+        while (size <= offset) fill();
+        return cache[(head + offset) & (cache.length - 1)];
     }
     
     private Token consume() {
-        final Token consumable = cache.size() > 0 ? 
-            cache.remove(0) : 
-            tokeniser.nextToken();
-
-        if (!consumable.isAny(TokenType.StringLiteral))
-            line += consumable.value.chars().filter(i -> i == '\n').count(); 
-        
+        if (size == 0) fill();
+        final Token consumable = cache[head];
+        line = lines[head];
+        cache[head] = null;
+        head = (head + 1) & (cache.length - 1);
+        size -= 1;
         return consumable;
     }
 
+    // Read the next token from the tokeniser into the end of the buffer.
+    private void fill() {
+        if (size == cache.length) {
+            final Token[] tokens = new Token[size * 2];
+            final int[] lns = new int[size * 2];
+            for (int i = 0; i < size; i += 1) {
+                tokens[i] = cache[(head + i) & (size - 1)];
+                lns[i] = lines[(head + i) & (size - 1)];
+            }
+            cache = tokens; lines = lns; head = 0;
+        }
+
+        final int tail = (head + size) & (cache.length - 1);
+        cache[tail] = !tokeniser.scan() ? Token.EOT :
+            tokeniser.definite() != null ? tokeniser.definite() :
+            tokeniser.type() == TokenType.Comment ? COMMENT :
+            Token.make(tokeniser.text(), tokeniser.type());
+        lines[tail] = tokeniser.line();
+        size += 1;
+        tokens += 1;
+    }
+
     private boolean tryConsume(Token token, boolean skipBlank) {
         final boolean success;
         if (success = peek() == token) {
@@ -678,8 +735,8 @@ public class Parser {
         return root;
     }
 
-    private RuntimeException error(String message) {
-        return new RuntimeException(message + " (line: " + line + ")");
+    private SmgSyntaxException error(String message) {
+        return new SmgSyntaxException(line, message);
     }
 
     private <T> T tryParse(T node, String error) {
@@ -0,0 +1,176 @@
+package smg.interpreter;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/*
+ * The list created by list literals and list concatenation.
+ *
+ * Elements are kept in a tree of arrays of up to 32 elements each (the same
+ * layout as Clojure's vectors), plus a tail array that new elements go into
+ * until it fills up. The arrays are never changed once a list can see them;
+ * anything that would change one copies it along with its parents instead,
+ * leaving the other lists that share it untouched. Concatenating a list with
+ * a few elements therefore shares all of the old list's tree, rather than
+ * copying every element as it used to.
+ *
+ * The list object itself is mutable, so that scripts can still assign to its
+ * elements and Java code can use it like any other java.util.List. Setting or
+ * appending an element just replaces the list's own root or tail. Inserting
+ * and removing anywhere but the end rebuilds the tree.
+ */
+final class PersistentList extends AbstractList<Object>
+    implements RandomAccess {
+
+    private static final int BITS = 5, WIDTH = 1 << BITS, MASK = WIDTH - 1;
+    private static final Object[] EMPTY = new Object[0];
+
+    private int size = 0, shift = BITS;
+    private Object[] root = new Object[WIDTH], tail = EMPTY;
+
+    PersistentList() {}
+
+    PersistentList(Collection<?> items) { addAll(items); }
+
+    // A new list sharing the tree of another.
+    private PersistentList(PersistentList list) {
+        size = list.size; shift = list.shift;
+        root = list.root; tail = list.tail;
+    }
+
+    // A copy of this list. Neither can change the other, and copying takes
+    // the same time however long the list is.
+    PersistentList copy() { return new PersistentList(this); }
+
+    // A new list of the elements of this one followed by the given value. If
+    // it is a list itself, its elements are added instead.
+    PersistentList plus(Object value) {
+        final PersistentList result = new PersistentList(this);
+        if (value instanceof List) result.addAll((List<?>) value);
+        else result.add(value);
+        return result;
+    }
+
+    public int size() { return size; }
+
+    public Object get(int index) {
+        return leaf(check(index))[index & MASK];
+    }
+
+    public Object set(int index, Object value) {
+        final Object[] leaf = leaf(check(index));
+        final Object old = leaf[index & MASK];
+        if (index >= tailOffset()) {
+            tail = tail.clone();
+            tail[index & MASK] = value;
+        }
+        else root = set(shift, root, index, value);
+        return old;
+    }
+
+    public boolean add(Object value) {
+        if (size - tailOffset() < WIDTH) {
+            tail = Arrays.copyOf(tail, tail.length + 1);
+            tail[tail.length - 1] = value;
+        }
+
+        // The tail is full and moves into the tree, which grows another level
+        // once the root is full too.
+        else {
+            if ((size >>> BITS) > (1 << shift)) {
+                final Object[] grown = new Object[WIDTH];
+                grown[0] = root;
+                grown[1] = path(shift, tail);
+                root = grown;
+                shift += BITS;
+            }
+            else root = push(shift, root, tail);
+            tail = new Object[] { value };
+        }
+
+        size += 1;
+        modCount += 1;
+        return true;
+    }
+
+    public void add(int index, Object value) {
+        if (index == size) { add(value); return; }
+        final List<Object> items = new ArrayList<>(this);
+        items.add(index, value);
+        rebuild(items);
+    }
+
+    public Object remove(int index) {
+        final List<Object> items = new ArrayList<>(this);
+        final Object old = items.remove(index);
+        rebuild(items);
+        return old;
+    }
+
+    public void clear() {
+        size = 0; shift = BITS;
+        root = new Object[WIDTH]; tail = EMPTY;
+        modCount += 1;
+    }
+
+    // MARK: Tree
+    private void rebuild(List<Object> items) {
+        clear();
+        for (Object item : items) add(item);
+    }
+
+    private int check(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(
+            "Index " + index + " out of bounds for length " + size
+        );
+        return index;
+    }
+
+    // Elements before this index are in the tree, the rest in the tail.
+    private int tailOffset() {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+    }
+
+    // The array holding the element at the given index
+    private Object[] leaf(int index) {
+        if (index >= tailOffset()) return tail;
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS)
+            node = (Object[]) node[(index >>> level) & MASK];
+        return node;
+    }
+
+    private static Object[] set(
+        int level, Object[] node, int index, Object value
+    ) {
+        final Object[] copy = node.clone();
+        if (level == 0) copy[index & MASK] = value;
+        else {
+            final int i = (index >>> level) & MASK;
+            copy[i] = set(level - BITS, (Object[]) node[i], index, value);
+        }
+        return copy;
+    }
+
+    // Copies the path to where the full tail goes, adding nodes as needed.
+    private Object[] push(int level, Object[] node, Object[] leaf) {
+        final int i = ((size - 1) >>> level) & MASK;
+        final Object[] copy = node.clone();
+        copy[i] = level == BITS ? leaf : node[i] == null ?
+            path(level - BITS, leaf) :
+            push(level - BITS, (Object[]) node[i], leaf);
+        return copy;
+    }
+
+    // A chain of new nodes from the given level down to a leaf.
+    private static Object[] path(int level, Object[] leaf) {
+        if (level == 0) return leaf;
+        final Object[] node = new Object[WIDTH];
+        node[0] = path(level - BITS, leaf);
+        return node;
+    }
+}
@@ -0,0 +1,358 @@
+package smg.interpreter;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/*
+ * The map created by map literals and map concatenation.
+ *
+ * Entries are kept in a hash array mapped trie: every node covers 5 bits of
+ * the keys' hashes and holds only the entries and child nodes for the bits in
+ * use, found by counting the bits set in its bitmap. Keys whose hashes are
+ * the same all the way down share a collision node. Nodes are never changed
+ * once created. Putting or removing a key copies the nodes on the path to it
+ * and shares the rest, so concatenating a map with a few entries no longer
+ * copies every entry of the other.
+ *
+ * Like PersistentList, the map object itself is mutable and works with Java
+ * code as any other java.util.Map. It iterates in the order of its keys' hash
+ * bits, which is not the order a HashMap of the same keys would use.
+ */
+final class PersistentMap extends AbstractMap<Object, Object> {
+
+    private static final int BITS = 5, MASK = (1 << BITS) - 1;
+
+    // Returned by nodes for keys they do not hold
+    private static final Object ABSENT = new Object();
+
+    private Node root = Bitmap.EMPTY;
+    private int size = 0;
+
+    // The null key is kept outside of the trie.
+    private boolean hasNull = false;
+    private Object nullValue = null;
+
+    PersistentMap() {}
+
+    PersistentMap(Map<?, ?> entries) { putAll(entries); }
+
+    // A new map sharing the trie of another.
+    private PersistentMap(PersistentMap map) {
+        root = map.root; size = map.size;
+        hasNull = map.hasNull; nullValue = map.nullValue;
+    }
+
+    // A copy of this map, made in constant time like PersistentList.copy().
+    PersistentMap copy() { return new PersistentMap(this); }
+
+    // A new map of the entries of this one and then those of the given map,
+    // whose values win for keys in both.
+    PersistentMap plus(Map<?, ?> entries) {
+        final PersistentMap result = new PersistentMap(this);
+        result.putAll(entries);
+        return result;
+    }
+
+    public int size() { return size; }
+
+    public boolean containsKey(Object key) {
+        if (key == null) return hasNull;
+        return root.find(0, hash(key), key) != ABSENT;
+    }
+
+    public Object get(Object key) {
+        if (key == null) return nullValue;
+        final Object value = root.find(0, hash(key), key);
+        return value == ABSENT ? null : value;
+    }
+
+    public Object put(Object key, Object value) {
+        if (key == null) {
+            final Object old = nullValue;
+            if (!hasNull) size += 1;
+            hasNull = true;
+            nullValue = value;
+            return old;
+        }
+
+        final Object old = get(key);
+        final boolean[] added = { false };
+        root = root.put(0, hash(key), key, value, added);
+        if (added[0]) size += 1;
+        return old;
+    }
+
+    public Object remove(Object key) {
+        if (key == null) {
+            final Object old = nullValue;
+            if (hasNull) size -= 1;
+            hasNull = false;
+            nullValue = null;
+            return old;
+        }
+
+        final int hash = hash(key);
+        final Object old = root.find(0, hash, key);
+        if (old == ABSENT) return null;
+
+        final Node node = root.remove(0, hash, key);
+        root = node == null ? Bitmap.EMPTY : node;
+        size -= 1;
+        return old;
+    }
+
+    public void clear() {
+        root = Bitmap.EMPTY; size = 0;
+        hasNull = false; nullValue = null;
+    }
+
+    public Set<Entry<Object, Object>> entrySet() {
+        return new AbstractSet<>() {
+            public int size() { return size; }
+            public void clear() { PersistentMap.this.clear(); }
+            public Iterator<Entry<Object, Object>> iterator() {
+                return new Entries();
+            }
+        };
+    }
+
+    // Iterates over the entries there were when it was created. Values set
+    // through the entries and removals go to the map.
+    private final class Entries implements Iterator<Entry<Object, Object>> {
+        private final List<Object> pairs = new ArrayList<>(size * 2);
+        private int next = 0;
+        private Object last = ABSENT;
+
+        Entries() {
+            if (hasNull) { pairs.add(null); pairs.add(nullValue); }
+            root.collect(pairs);
+        }
+
+        public boolean hasNext() { return next < pairs.size(); }
+
+        public Entry<Object, Object> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Object key = last = pairs.get(next);
+            final Object value = pairs.get(next + 1);
+            next += 2;
+            return new SimpleEntry<>(key, value) {
+                public Object setValue(Object value) {
+                    put(key, value);
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        public void remove() {
+            if (last == ABSENT) throw new IllegalStateException();
+            PersistentMap.this.remove(last);
+            last = ABSENT;
+        }
+    }
+
+    // MARK: Trie
+    // The same spreading of the hash code as HashMap uses
+    private static int hash(Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private interface Node {
+        // The value of the key, or ABSENT
+        Object find(int shift, int hash, Object key);
+
+        // The node with the key set to the value. Sets added[0] if the key
+        // was not there before.
+        Node put(int shift, int hash, Object key, Object value,
+            boolean[] added);
+
+        // The node without the key, or null if nothing would be left
+        Node remove(int shift, int hash, Object key);
+
+        // Adds the keys and values in the node to the list, one after another.
+        void collect(List<Object> pairs);
+    }
+
+    // A node holding up to 32 keys and child nodes. Its array has two places
+    // for each bit set in the bitmap, holding either a key and its value, or
+    // null and a child node.
+    private static final class Bitmap implements Node {
+        static final Bitmap EMPTY = new Bitmap(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        Bitmap(int b, Object[] a) { bitmap = b; array = a; }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1)) * 2;
+        }
+
+        public Object find(int shift, int hash, Object key) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return ABSENT;
+
+            final int i = index(bit);
+            final Object k = array[i];
+            if (k == null)
+                return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+            return key.equals(k) ? array[i + 1] : ABSENT;
+        }
+
+        public Node put(
+            int shift, int hash, Object key, Object value, boolean[] added
+        ) {
+            final int bit = bit(hash, shift);
+            final int i = index(bit);
+
+            // A new key in an empty place
+            if ((bitmap & bit) == 0) {
+                final Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, i);
+                grown[i] = key;
+                grown[i + 1] = value;
+                System.arraycopy(array, i, grown, i + 2, array.length - i);
+                added[0] = true;
+                return new Bitmap(bitmap | bit, grown);
+            }
+
+            final Object k = array[i], v = array[i + 1];
+            final Object[] copy = array.clone();
+            if (k == null) {
+                final Node child =
+                    ((Node) v).put(shift + BITS, hash, key, value, added);
+                if (child == v) return this;
+                copy[i + 1] = child;
+            }
+            else if (key.equals(k)) {
+                if (value == v) return this;
+                copy[i + 1] = value;
+            }
+
+            // Another key in the same place. Both move down into a new node.
+            else {
+                copy[i] = null;
+                copy[i + 1] = pair(shift + BITS, k, v, hash, key, value);
+                added[0] = true;
+            }
+            return new Bitmap(bitmap, copy);
+        }
+
+        public Node remove(int shift, int hash, Object key) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+
+            final int i = index(bit);
+            final Object k = array[i];
+            if (k == null) {
+                final Node child =
+                    ((Node) array[i + 1]).remove(shift + BITS, hash, key);
+                if (child == array[i + 1]) return this;
+                if (child != null) {
+                    final Object[] copy = array.clone();
+                    copy[i + 1] = child;
+                    return new Bitmap(bitmap, copy);
+                }
+            }
+            else if (!key.equals(k)) return this;
+
+            if (bitmap == bit) return null;
+            final Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, shrunk.length - i);
+            return new Bitmap(bitmap ^ bit, shrunk);
+        }
+
+        public void collect(List<Object> pairs) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) ((Node) array[i + 1]).collect(pairs);
+                else { pairs.add(array[i]); pairs.add(array[i + 1]); }
+            }
+        }
+
+        // A node holding two keys that share the bits above the given shift
+        private static Node pair(
+            int shift, Object k1, Object v1, int h2, Object k2, Object v2
+        ) {
+            final int h1 = hash(k1);
+            if (h1 == h2)
+                return new Collision(h1, new Object[] { k1, v1, k2, v2 });
+
+            final boolean[] added = { false };
+            return EMPTY
+                .put(shift, h1, k1, v1, added)
+                .put(shift, h2, k2, v2, added);
+        }
+    }
+
+    // A node holding keys whose hashes are all the same, in no order.
+    private static final class Collision implements Node {
+        final int hash;
+        final Object[] array;
+
+        Collision(int h, Object[] a) { hash = h; array = a; }
+
+        private int index(Object key) {
+            for (int i = 0; i < array.length; i += 2)
+                if (Objects.equals(key, array[i])) return i;
+            return -1;
+        }
+
+        public Object find(int shift, int hash, Object key) {
+            final int i = index(key);
+            return i < 0 ? ABSENT : array[i + 1];
+        }
+
+        public Node put(
+            int shift, int hash, Object key, Object value, boolean[] added
+        ) {
+            // A key with another hash is kept next to this node in a new one.
+            if (hash != this.hash) {
+                return new Bitmap(bit(this.hash, shift), new Object[] {
+                    null, this
+                }).put(shift, hash, key, value, added);
+            }
+
+            final int i = index(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                final Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new Collision(hash, copy);
+            }
+
+            final Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            grown[array.length] = key;
+            grown[array.length + 1] = value;
+            added[0] = true;
+            return new Collision(hash, grown);
+        }
+
+        public Node remove(int shift, int hash, Object key) {
+            final int i = index(key);
+            if (i < 0) return this;
+            if (array.length == 2) return null;
+
+            final Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, shrunk.length - i);
+            return new Collision(hash, shrunk);
+        }
+
+        public void collect(List<Object> pairs) {
+            for (Object item : array) pairs.add(item);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package smg.interpreter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records how often each statement and function call of a script runs and
+ * how much time is spent in it, by itself (self) and including everything it
+ * runs in turn (total). Times are also added up by line, and by stack for
+ * flame graphs.
+ * <pre>
+ * final Profiler profiler = new Profiler();
+ * interpreter.setProfiler(profiler);
+ * interpreter.run();
+ * System.out.println(profiler.report(20));
+ * Files.writeString(path, profiler.collapsedStacks());
+ * </pre>
+ * Profiled runs are always tree-walked, even if the script is compiled, so
+ * that every statement can be timed. Nothing is recorded and nothing changes
+ * for interpreters without a profiler. A profiler can be shared by several
+ * runs of one interpreter to add them up, but not by several interpreters
+ * running at once.
+ */
+public final class Profiler {
+
+    // Counts and times for a statement, a call site or a line. Only the
+    // outermost of several nested activations of the same one (by recursion
+    // or by being on the same line) adds to its total.
+    private static final class Stats {
+        final Object node;
+        final String name;
+        final int line;
+        long count = 0, self = 0, total = 0;
+        int active = 0;
+
+        Stats(Object n, String s, int l) { node = n; name = s; line = l; }
+    }
+
+    // A frame of the collapsed stacks. Functions are frames of their own, and
+    // so are the lines of the statements run in each function. Frames with
+    // the same name are merged, even for different call sites.
+    private static final class Context {
+        final String name;
+        final Map<String, Context> children = new HashMap<>();
+        long self = 0;
+
+        // Frames are separated by semicolons, and stacks by new lines.
+        Context(String n) { 
+            name = n.replace(';', ',').replaceAll("\\s+", " "); 
+        }
+
+        Context child(Stats stats) {
+            return children.computeIfAbsent(stats.name, Context::new);
+        }
+    }
+
+    // A statement or call in progress
+    private static final class Entry {
+        final Entry parent;
+        final Stats stats, line;
+        final Context context, function;
+        final long start = System.nanoTime();
+        long children = 0;
+
+        Entry(Entry p, Stats s, Stats l, Context c, Context f) {
+            parent = p; stats = s; line = l; context = c; function = f;
+        }
+    }
+
+    private final Map<Object, Stats> nodes = new IdentityHashMap<>();
+    private final Map<Integer, Stats> lines = new HashMap<>();
+    private final Context root = new Context("script");
+    private Entry top = null;
+
+    public Profiler() {}
+
+    // Forgets everything recorded so far.
+    public void reset() {
+        nodes.clear();
+        lines.clear();
+        root.children.clear();
+        root.self = 0;
+        top = null;
+    }
+
+    // MARK: Recording
+    void enter(NodeStmt stmt) {
+        final Stats stats = stats(stmt, null, stmt.line);
+        final Stats line = line(stmt.line);
+
+        // Lines are counted by the statements that start on them, except for 
+        // those nested in another statement on the same line.
+        if (top == null || top.line != line || 
+            top.stats.node instanceof NodeTerm.Call) line.count += 1;
+
+        final Context function = top == null ? root : top.function;
+        push(stats, line, function.child(line), function);
+    }
+
+    void enter(NodeTerm.Call call, int at) {
+        final Stats stats = stats(call, call.f.toString(), at);
+        final Context caller = top == null ? root : top.context;
+        final Context context = caller.child(stats);
+        push(stats, line(at), context, context);
+    }
+
+    private void push(Stats stats, Stats line, Context context, Context f) {
+        stats.active += 1;
+        line.active += 1;
+        top = new Entry(top, stats, line, context, f);
+    }
+
+    void exit() {
+        final Entry entry = top;
+        final long elapsed = System.nanoTime() - entry.start;
+        final long self = elapsed - entry.children;
+        top = entry.parent;
+        if (top != null) top.children += elapsed;
+
+        record(entry.stats, self, elapsed);
+        record(entry.line, self, elapsed);
+        entry.stats.count += 1;
+        entry.context.self += self;
+    }
+
+    private static void record(Stats stats, long self, long elapsed) {
+        stats.self += self;
+        if ((stats.active -= 1) == 0) stats.total += elapsed;
+    }
+
+    private Stats stats(Object node, String name, int line) {
+        return nodes.computeIfAbsent(node, n -> new Stats(n, name, line));
+    }
+
+    private Stats line(int line) {
+        return lines.computeIfAbsent(
+            line, l -> new Stats(null, "line " + l, l)
+        );
+    }
+
+    // MARK: Reports
+    /**
+     * The lines, statements and calls that took the most time by themselves,
+     * up to the given number of each, as a table.
+     */
+    public String report(int limit) {
+        final StringBuilder report = new StringBuilder();
+        table(report, "Lines", new ArrayList<>(lines.values()), limit);
+        table(report, "Statements and calls",
+            new ArrayList<>(nodes.values()), limit);
+        return report.toString();
+    }
+
+    private static void table(
+        StringBuilder report, String title, List<Stats> stats, int limit
+    ) {
+        stats.sort(Comparator.comparingLong((Stats s) -> s.self).reversed());
+        report.append(String.format("%s%n%6s %12s %12s %12s  %s%n",
+            title, "line", "count", "self ms", "total ms", "source"));
+        for (Stats s : stats.subList(0, Math.min(limit, stats.size()))) {
+            report.append(String.format("%6d %12d %12.3f %12.3f  %s%n",
+                s.line, s.count, s.self / 1e6, s.total / 1e6, source(s)));
+        }
+        report.append(System.lineSeparator());
+    }
+
+    // The first line of a statement, shortened to fit in a report
+    private static String source(Stats stats) {
+        if (stats.node == null) return "";
+        final String text = stats.name != null ?
+            stats.name + "(...)" :
+            stats.node.toString().strip().lines().findFirst().orElse("");
+        return text.length() <= 60 ? text : text.substring(0, 57) + "...";
+    }
+
+    /**
+     * The time spent in each stack of functions and lines, in microseconds,
+     * in the collapsed stack format read by flame graph tools:
+     * <pre>
+     * script;line 9;fibonacci;line 4 1520
+     * </pre>
+     */
+    public String collapsedStacks() {
+        final StringBuilder stacks = new StringBuilder();
+        collapse(stacks, root, root.name);
+        return stacks.toString();
+    }
+
+    private static void collapse(
+        StringBuilder stacks, Context context, String stack
+    ) {
+        final long micros = context.self / 1000;
+        if (micros > 0) stacks.append(stack).append(' ').append(micros)
+            .append('\n');
+        for (Context child : context.children.values())
+            collapse(stacks, child, stack + ';' + child.name);
+    }
+}
@@ -0,0 +1,258 @@
+package smg.interpreter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The resolver walks a parsed program once, before it is run, and works out
+ * where each local variable will live at runtime. Every scope that the
+ * Interpreter enters gets a fixed layout of slots, and every variable node
+ * that refers to one of those locals is bound to a (depth, slot) pair, depth
+ * being the number of scopes between the reference and its declaration.
+ * <p>
+ * Only variables declared inside blocks and functions are resolved. Globals
+ * can be defined by the host at any time, and anything a function refers to
+ * from outside of itself is found through its capture or, failing that, the
+ * caller's scopes. Both are left to be looked up by name as before.
+ * <p>
+ * Those names are also recorded as the free variables of every function they
+ * reach out of, so that creating a function only has to capture them.
+ * <p>
+ * Resolving the same program twice produces the same result, so programs can
+ * safely be shared between interpreters.
+ */
+class Resolver
+    implements NodeStmt.Visitor, NodeExpr.Visitor, NodeTerm.Visitor {
+
+    static final String[] NONE = new String[0];
+
+    // Mirrors the scopes the Interpreter will have at runtime. Each entry holds
+    // the names declared in that scope so far, ordered by slot. Null entries
+    // are scopes whose contents are only known at runtime (globals and
+    // captures) and stop resolution from going any further.
+    private final LinkedList<List<String>> scopes = new LinkedList<>();
+
+    // The free variables of each function being resolved, innermost last. 
+    // Every null entry in scopes but the first belongs to one of them.
+    private final LinkedList<Set<String>> free = new LinkedList<>();
+
+    private Resolver() {}
+
+    static NodeProgram resolve(NodeProgram program) {
+        if (program == null) return null;
+
+        final Resolver resolver = new Resolver();
+        resolver.scopes.add(null);
+        resolver.resolveStmts(program.stmts);
+        return program;
+    }
+
+    // MARK: Helpers
+    private void resolveStmts(List<NodeStmt> stmts) {
+        for (NodeStmt stmt : stmts) if (stmt != null) stmt.host(this);
+    }
+
+    private void resolveScope(NodeScope scope) {
+        if (scope == null) return;
+        enterScope();
+        resolveStmts(scope.stmts);
+        scope.locals = exitScope();
+    }
+
+    private void resolveExpr(NodeExpr expr) { 
+        if (expr != null) expr.host(this); 
+    }
+
+    private void resolveTerm(NodeTerm term) { 
+        if (term != null) term.host(this); 
+    }
+
+    private void enterScope() { scopes.add(new ArrayList<>()); }
+    private String[] exitScope() {
+        return scopes.removeLast().toArray(NONE);
+    }
+
+    // Declares a variable in the innermost scope and returns its slot. Slots
+    // are reused if a name is declared twice, and the Interpreter reports the
+    // redefinition when it happens.
+    private int declare(String name) {
+        final List<String> scope = scopes.getLast();
+        if (scope == null) return -1;
+
+        final int slot = scope.indexOf(name);
+        if (slot >= 0) return slot;
+
+        scope.add(name);
+        return scope.size() - 1;
+    }
+
+    // MARK: Statements
+    public void visit(NodeStmt.Assign assign) {
+        resolveTerm(assign.term);
+        resolveExpr(assign.expr);
+    }
+
+    public void visit(NodeStmt.Declare decl) {
+        // The value is evaluated before the variable exists, so any reference
+        // to the same name inside it belongs to an outer variable.
+        resolveExpr(decl.expr);
+        decl.slot = declare(decl.var);
+    }
+
+    public void visit(NodeStmt.If stmt) {
+        resolveExpr(stmt.expr);
+        resolveScope(stmt.succ);
+        resolveScope(stmt.fail);
+    }
+
+    public void visit(NodeStmt.While loop) {
+        resolveExpr(loop.expr);
+        resolveScope(loop.scope);
+    }
+
+    public void visit(NodeStmt.For loop) {
+        enterScope();
+        if (loop.init != null) loop.init.host(this);
+        resolveExpr(loop.cond);
+        resolveScope(loop.scope);
+        if (loop.inc != null) loop.inc.host(this);
+        loop.locals = exitScope();
+    }
+
+    public void visit(NodeStmt.ForEach loop) {
+        resolveTerm(loop.list);
+        enterScope();
+        declare(loop.itr);
+        resolveScope(loop.scope);
+        loop.locals = exitScope();
+    }
+
+    public void visit(NodeStmt.ParallelForEach loop) {
+        resolveTerm(loop.list);
+        enterScope();
+        declare(loop.itr);
+        resolveScope(loop.scope);
+        loop.locals = exitScope();
+    }
+
+    public void visit(NodeStmt.TryCatch block) {
+        resolveScope(block._try);
+        enterScope();
+        if (block.err != null) declare(block.err);
+        resolveScope(block._catch);
+        block.locals = exitScope();
+        resolveScope(block._finally);
+    }
+
+    public void visit(NodeStmt.Function def) {
+        def.lambda.host(this);
+        def.slot = declare(def.name);
+    }
+
+    public void visit(NodeStmt.Return stmt) { resolveExpr(stmt.expr); }
+    public void visit(NodeStmt.Expr exp) { resolveExpr(exp.expr); }
+    public void visit(NodeStmt.Scope scope) { resolveScope(scope.scope); }
+    public void visit(NodeStmt.Break stmt) {}
+    public void visit(NodeStmt.Continue stmt) {}
+
+    // MARK: Expressions
+    public <R> R visit(NodeExpr.Binary node) {
+        resolveTerm(node.lhs);
+        resolveTerm(node.rhs);
+        return null;
+    }
+
+    public <R> R visit(NodeExpr.Term node) {
+        resolveTerm(node.val);
+        return null;
+    }
+
+    public <R> R visit(NodeExpr.Lambda def) {
+        // Calls push the capture of a function before its parameters, which
+        // hides everything outside of the function from resolution.
+        scopes.add(null);
+        free.add(new LinkedHashSet<>());
+        enterScope();
+        for (NodeParam param : def.params) {
+            resolveExpr(param._default);
+            param.slot = declare(param.param);
+        }
+        resolveScope(def.body);
+        def.locals = exitScope();
+        def.free = free.removeLast().toArray(NONE);
+        scopes.removeLast();
+        return null;
+    }
+
+    // MARK: Terms
+    public <R> R visit(NodeTerm.Variable var) {
+        int depth = 0, function = free.size();
+        for (var itr = scopes.descendingIterator(); itr.hasNext(); depth += 1) {
+            final List<String> scope = itr.next();
+
+            // A variable not declared inside a function by the time it is
+            // referred to is free in that function. The search goes on in
+            // case it is declared in an enclosing one.
+            if (scope == null) {
+                if ((function -= 1) < 0) break;
+                free.get(function).add(var.var);
+                continue;
+            }
+
+            final int slot = scope.indexOf(var.var);
+            if (slot < 0) continue;
+            if (function == free.size()) {
+                var.depth = depth; var.slot = slot;
+            }
+            break;
+        }
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.Expr expr) {
+        resolveExpr(expr.expr);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.ArrayLiteral arr) {
+        for (NodeExpr item : arr.items) resolveExpr(item);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.MapLiteral map) {
+        for (NodeMapEntry entry : map.items) resolveExpr(entry.value);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.UnaryExpr expr) {
+        resolveTerm(expr.val);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.ArrayAccess access) {
+        resolveTerm(access.array);
+        resolveExpr(access.index);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.PropAccess access) {
+        resolveTerm(access.object);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.Call call) {
+        resolveTerm(call.f);
+        for (NodeExpr arg : call.args) resolveExpr(arg);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.Cast cast) {
+        resolveTerm(cast.object);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.Literal<?> lit) { return null; }
+}
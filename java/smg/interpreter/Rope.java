@@ -0,0 +1,89 @@
+package smg.interpreter;
+
+/*
+ * A string built up by concatenation, such as the output of a template
+ * script. Long strings concatenated with `+` become ropes, which share one
+ * growing buffer instead of copying everything before them every time:
+ *
+ *   let page = ''
+ *   for (row in rows) { page = page + '<tr>' + row + '</tr>' }
+ *
+ * A rope is the first `length` characters of its buffer. Characters are only
+ * ever added to the end of a buffer, so a rope never changes. Appending to the
+ * newest rope of a buffer appends to the buffer itself; appending to an older
+ * one copies it into a new buffer first, as String.concat() would.
+ *
+ * Ropes are flattened into Strings (once, the result is kept) whenever they
+ * are observed as strings: when cast, compared, indexed, iterated over,
+ * passed to functions that are not defined by the script, or returned to the
+ * host by run() and getVar(). They are also flattened when they are stored in
+ * a list or map, or read through getGlobals() or SharedGlobals, so the host
+ * only ever sees Strings. Ropes only live in variables while a script runs,
+ * and are only ever compared with each other.
+ */
+final class Rope implements CharSequence {
+
+    // Concatenations shorter than this are left to String.concat().
+    static final int MIN_LENGTH = 1 << 10;
+
+    private final StringBuilder buffer;
+    private final int length;
+    private String flat = null;
+
+    private Rope(StringBuilder b, int l) { buffer = b; length = l; }
+
+    // Concatenates a string or rope with a string.
+    static CharSequence concat(CharSequence lhs, String rhs) {
+        if (lhs instanceof Rope) return ((Rope) lhs).append(rhs);
+
+        final int length = lhs.length() + rhs.length();
+        if (length < MIN_LENGTH) return ((String) lhs).concat(rhs);
+
+        final StringBuilder buffer = new StringBuilder(length * 2);
+        buffer.append(lhs).append(rhs);
+        return new Rope(buffer, length);
+    }
+
+    // Ropes can be shared between threads through global variables, so their
+    // buffers are only ever used while holding them.
+    private Rope append(String s) {
+        synchronized (buffer) {
+            if (buffer.length() == length) {
+                buffer.append(s);
+                return new Rope(buffer, buffer.length());
+            }
+        }
+
+        final StringBuilder copy = new StringBuilder((length + s.length()) * 2);
+        synchronized (buffer) { copy.append(buffer, 0, length); }
+        copy.append(s);
+        return new Rope(copy, copy.length());
+    }
+
+    public int length() { return length; }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length) 
+            throw new StringIndexOutOfBoundsException(
+                "index " + index + ", length " + length
+            );
+        synchronized (buffer) { return buffer.charAt(index); }
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    public String toString() {
+        if (flat == null) synchronized (buffer) {
+            flat = buffer.substring(0, length);
+        }
+        return flat;
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof Rope && toString().equals(o.toString());
+    }
+
+    public int hashCode() { return toString().hashCode(); }
+}
@@ -0,0 +1,91 @@
+package smg.interpreter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of parsed scripts, keyed by their source code. It sits in
+ * front of the Parser for every new Interpreter(code), so services that keep
+ * running the same scripts only pay for tokenising and parsing them once.
+ * <p>
+ * The least recently used script is evicted once the cache is full. Lookups
+ * are thread safe. Scripts are parsed outside of the lock, so two threads 
+ * missing on the same script at the same time may both parse it, but only one
+ * of the results is kept. Scripts that fail to parse are never cached.
+ */
+public final class ScriptCache {
+
+    private static final ScriptCache shared = new ScriptCache(512);
+
+    // Keys are the full source code rather than a digest of it, so different 
+    // scripts can never collide. Source code is usually small compared to the
+    // tree parsed from it.
+    private final Map<String, CompiledScript> scripts;
+    private int capacity;
+
+    private final LongAdder 
+        hits = new LongAdder(), 
+        misses = new LongAdder(), 
+        evictions = new LongAdder();
+
+    public ScriptCache(int capacity) {
+        this.capacity = capacity;
+        scripts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, CompiledScript> eldest
+            ) {
+                if (size() <= ScriptCache.this.capacity) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    // The cache used by new Interpreter(code).
+    public static ScriptCache shared() { return shared; }
+
+    public CompiledScript get(String code) {
+        CompiledScript script;
+        synchronized (scripts) { script = scripts.get(code); }
+        if (script != null) {
+            hits.increment();
+            return script;
+        }
+
+        misses.increment();
+        script = CompiledScript.parsed(code);
+        if (capacity <= 0) return script;
+
+        synchronized (scripts) {
+            final CompiledScript existing = scripts.putIfAbsent(code, script);
+            return existing == null ? script : existing;
+        }
+    }
+
+    // Setting the capacity to zero disables caching altogether.
+    public void setCapacity(int amount) {
+        synchronized (scripts) {
+            capacity = amount;
+            final var itr = scripts.entrySet().iterator();
+            while (scripts.size() > capacity && itr.hasNext()) {
+                itr.next();
+                itr.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void clear() { synchronized (scripts) { scripts.clear(); } }
+    public int size() { synchronized (scripts) { return scripts.size(); } }
+    public int capacity() { return capacity; }
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+    public long evictions() { return evictions.sum(); }
+
+    public String toString() {
+        return String.format("ScriptCache(size: %d/%d, hits: %d, misses: %d, " + 
+            "evictions: %d)", size(), capacity, hits(), misses(), evictions());
+    }
+}
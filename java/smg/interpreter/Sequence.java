@@ -0,0 +1,201 @@
+package smg.interpreter;
+
+import static smg.interpreter.Types.*;
+
+import smg.interpreter.Capture.F;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/*
+ * Lazy sequences of values, which for loops go through one value at a time
+ * without ever building a list of them.
+ *
+ *   for (i in range(0, 1000000)) { ... }
+ *   for (claim in sequence(claims).filter(open).map(score).take(10)) { ... }
+ *
+ * range(end), range(start, end) and range(start, end, step) count with a
+ * primitive long, and for loops keep their variable unboxed while they go
+ * through one. sequence() makes a sequence of anything a for loop can go
+ * through, or of an iterator written in the script as a map of next() and
+ * hasNext() functions. Sequences can then be mapped, filtered and cut short,
+ * which makes new sequences, or collected into a list.
+ *
+ * Sequences hold no position of their own, so they can be gone through any
+ * number of times. Functions are only called as values are taken, by the
+ * interpreter going through the sequence.
+ */
+abstract class Sequence {
+
+    abstract Iterator<?> iterator(Interpreter intr);
+
+    // MARK: Builtins
+    static Sequence range(Interpreter intr, Object... args) {
+        if (args.length == 0 || args.length > 3) 
+            throw intr.error("range() takes 1 to 3 arguments");
+        final long start = args.length > 1 ? bound(intr, args[0]) : 0;
+        final long end = bound(intr, args[args.length > 1 ? 1 : 0]);
+        final long step = args.length > 2 ? bound(intr, args[2]) : 1;
+        if (step == 0) throw intr.error("Range step cannot be 0");
+        return new Range(start, end, step);
+    }
+
+    private static long bound(Interpreter intr, Object value) {
+        if (value instanceof Long || value instanceof Integer)
+            return ((Number) value).longValue();
+        throw intr.error(
+            "Range bounds must be whole numbers, not %s", javaType(value)
+        );
+    }
+
+    static Sequence sequence(Object source) {
+        return source instanceof Sequence ?
+            (Sequence) source : new Source(source);
+    }
+
+    // MARK: Properties
+    Object property(Interpreter intr, String prop) {
+        switch (prop) {
+            case "map": return (F) a -> new Mapped(this, a[0]);
+            case "filter": return (F) a -> new Filtered(this, a[0]);
+            case "take": return (F) a -> new Taken(this, bound(intr, a[0]));
+            case "list": return (F) a -> list(intr);
+        }
+        throw intr.error("Invalid Sequence property: " + prop);
+    }
+
+    private List<Object> list(Interpreter intr) {
+        final List<Object> values = new PersistentList();
+        iterator(intr).forEachRemaining(value -> values.add(flat(value)));
+        return intr.own(values);
+    }
+
+    // MARK: Sequences
+    static final class Range extends Sequence {
+        final long start, end, step;
+        Range(long s, long e, long t) { start = s; end = e; step = t; }
+
+        PrimitiveIterator.OfLong iterator(Interpreter intr) {
+            return new PrimitiveIterator.OfLong() {
+                long next = start;
+                boolean more = step > 0 ? start < end : start > end;
+
+                public boolean hasNext() { return more; }
+
+                // Stops rather than overflowing past the end.
+                public long nextLong() {
+                    if (!more) throw new NoSuchElementException();
+                    final long value = next;
+                    next += step;
+                    more = step > 0 ?
+                        next > value && next < end :
+                        next < value && next > end;
+                    return value;
+                }
+            };
+        }
+
+        public String toString() {
+            return "range(" + start + ", " + end + ", " + step + ")";
+        }
+    }
+
+    // Anything a for loop can go through, or a script iterator
+    private static final class Source extends Sequence {
+        final Object source;
+        Source(Object s) { source = s; }
+
+        Iterator<?> iterator(Interpreter intr) {
+            if (!of(source, Map.class) ||
+                !((Map<?, ?>) source).containsKey("hasNext") ||
+                !((Map<?, ?>) source).containsKey("next"))
+                return intr.iterate(source);
+
+            final Object hasNext = ((Map<?, ?>) source).get("hasNext");
+            final Object next = ((Map<?, ?>) source).get("next");
+            return new Iterator<Object>() {
+                public boolean hasNext() {
+                    return castValue(intr, "boolean", intr.callback(hasNext));
+                }
+                public Object next() { return intr.callback(next); }
+            };
+        }
+
+        public String toString() { return "sequence(" + source + ")"; }
+    }
+
+    private static final class Mapped extends Sequence {
+        final Sequence source; final Object f;
+        Mapped(Sequence s, Object g) { source = s; f = g; }
+
+        Iterator<?> iterator(Interpreter intr) {
+            final Iterator<?> values = source.iterator(intr);
+            return new Iterator<Object>() {
+                public boolean hasNext() { return values.hasNext(); }
+                public Object next() {
+                    return intr.callback(f, values.next());
+                }
+            };
+        }
+
+        public String toString() { return source + ".map(" + f + ")"; }
+    }
+
+    private static final class Filtered extends Sequence {
+        final Sequence source; final Object f;
+        Filtered(Sequence s, Object g) { source = s; f = g; }
+
+        // Looks ahead for the next value that passes, so that hasNext() knows
+        // whether there is one.
+        Iterator<?> iterator(Interpreter intr) {
+            final Iterator<?> values = source.iterator(intr);
+            return new Iterator<Object>() {
+                Object next = null;
+                boolean found = false;
+
+                public boolean hasNext() {
+                    while (!found && values.hasNext()) {
+                        next = values.next();
+                        found = castValue(
+                            intr, "boolean", intr.callback(f, next)
+                        );
+                    }
+                    return found;
+                }
+
+                public Object next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    found = false;
+                    return next;
+                }
+            };
+        }
+
+        public String toString() { return source + ".filter(" + f + ")"; }
+    }
+
+    private static final class Taken extends Sequence {
+        final Sequence source; final long count;
+        Taken(Sequence s, long c) { source = s; count = c; }
+
+        Iterator<?> iterator(Interpreter intr) {
+            final Iterator<?> values = source.iterator(intr);
+            return new Iterator<Object>() {
+                long left = count;
+                public boolean hasNext() {
+                    return left > 0 && values.hasNext();
+                }
+                public Object next() {
+                    if (left <= 0) throw new NoSuchElementException();
+                    left -= 1;
+                    return values.next();
+                }
+            };
+        }
+
+        public String toString() { return source + ".take(" + count + ")"; }
+    }
+}
@@ -0,0 +1,153 @@
+package smg.interpreter;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * A global scope that any number of interpreters can share while running on
+ * different threads.
+ * <pre>
+ * final SharedGlobals globals = new SharedGlobals(Map.of("rates", rates));
+ * ...
+ * final Object result = script.interpreter(globals).run();
+ * </pre>
+ * The variables are kept in a PersistentMap that is never changed once other
+ * threads can see it. Reads go through a single volatile read, without any
+ * locking. Writes copy the path to their variable and swap the new map in
+ * with a compare-and-set, retrying if another write got there first.
+ * <p>
+ * Interpreters sharing the globals still have a scope of their own on top of
+ * them, which holds their builtins, their own variables and any variables
+ * their scripts declare outside of blocks. Only the variables of the shared
+ * scope are shared, like those made with global() or put here by the host.
+ * <p>
+ * In isolated mode, each run sees the globals as they were when it started,
+ * whatever other runs do in the meantime. Its own changes are published all
+ * at once when it returns, and dropped if it throws. When two runs change the
+ * same variable, the one that finishes last wins.
+ * <p>
+ * Values themselves are shared as they are, so lists and maps kept in the
+ * globals should not be changed by runs on other threads.
+ */
+public final class SharedGlobals extends AbstractMap<String, Object> {
+
+    private final AtomicReference<PersistentMap> values;
+    private final boolean isolated;
+
+    public SharedGlobals() { this(Map.of(), false); }
+    public SharedGlobals(Map<String, ?> vars) { this(vars, false); }
+    public SharedGlobals(Map<String, ?> vars, boolean isolated) {
+        values = new AtomicReference<>(new PersistentMap(vars));
+        this.isolated = isolated;
+    }
+
+    public boolean isIsolated() { return isolated; }
+
+    public int size() { return values.get().size(); }
+
+    public boolean containsKey(Object key) {
+        return values.get().containsKey(key);
+    }
+
+    public Object get(Object key) { return values.get().get(key); }
+
+    // Strings built up by scripts are flattened before other threads and the
+    // host can see them.
+    public Object put(String key, Object value) {
+        final Object flat = Types.flat(value);
+        return update(map -> map.put(key, flat));
+    }
+
+    public Object remove(Object key) {
+        return update(map -> map.remove(key));
+    }
+
+    public void putAll(Map<? extends String, ?> vars) {
+        update(map -> { map.putAll(vars); return null; });
+    }
+
+    public void clear() { values.set(new PersistentMap()); }
+
+    // Iterates over the variables as they were when it was called.
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Set<Entry<String, Object>> entrySet() {
+        return Collections.unmodifiableSet((Set) values.get().entrySet());
+    }
+
+    /**
+     * A copy of the variables as they are now, taken in constant time. It is
+     * not affected by later changes to the globals, nor they by changes to it.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Map<String, Object> snapshot() {
+        return (Map) values.get().copy();
+    }
+
+    // Applies a change to a copy of the variables and publishes the copy,
+    // starting over if they were changed in the meantime.
+    private Object update(Function<PersistentMap, Object> change) {
+        while (true) {
+            final PersistentMap current = values.get(), next = current.copy();
+            final Object old = change.apply(next);
+            if (values.compareAndSet(current, next)) return old;
+        }
+    }
+
+    // MARK: Runs
+    // The scope a run should use as its globals: these themselves, or a
+    // snapshot of them in isolated mode.
+    Map<String, Object> begin() {
+        return isolated ? new Snapshot(values.get().copy()) : this;
+    }
+
+    // Publishes the changes a successful run made to its snapshot.
+    void commit(Map<String, Object> scope) {
+        if (!(scope instanceof Snapshot)) return;
+
+        final Snapshot snapshot = (Snapshot) scope;
+        if (snapshot.changed.isEmpty()) return;
+        update(map -> {
+            for (String key : snapshot.changed) {
+                if (snapshot.values.containsKey(key))
+                    map.put(key, Types.flat(snapshot.values.get(key)));
+                else map.remove(key);
+            }
+            return null;
+        });
+    }
+
+    // The globals as an isolated run sees them. Only used by one thread.
+    private static final class Snapshot extends AbstractMap<String, Object> {
+        final PersistentMap values;
+        final Set<String> changed = new HashSet<>();
+
+        Snapshot(PersistentMap v) { values = v; }
+
+        public int size() { return values.size(); }
+        public boolean containsKey(Object key) {
+            return values.containsKey(key);
+        }
+        public Object get(Object key) { return values.get(key); }
+
+        public Object put(String key, Object value) {
+            changed.add(key);
+            return values.put(key, value);
+        }
+
+        public Object remove(Object key) {
+            if (!values.containsKey(key)) return null;
+            changed.add((String) key);
+            return values.remove(key);
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public Set<Entry<String, Object>> entrySet() {
+            return Collections.unmodifiableSet((Set) values.entrySet());
+        }
+    }
+}
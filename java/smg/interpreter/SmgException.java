@@ -0,0 +1,85 @@
+package smg.interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An error in a script, raised by the interpreter while running it. Errors
+ * found while reading a script are SmgSyntaxExceptions, and runs stopped by
+ * their limits are LimitExceededExceptions.
+ * <p>
+ * Scripts often catch errors as a matter of course, as in
+ * <pre>
+ * try { name = person["name"] } catch (e) { name = "unknown" }
+ * </pre>
+ * so script errors are made to be cheap. They do not fill in a Java stack
+ * trace unless the smg.javaStackTraces system property is set, and their
+ * messages are only formatted when asked for. What they record instead is the
+ * script's own stack: the function calls that were in progress, and the line
+ * each of them had got to.
+ */
+public class SmgException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // Java stack traces are only useful when debugging the interpreter.
+    static final boolean JAVA_STACK_TRACES =
+        Boolean.getBoolean("smg.javaStackTraces");
+
+    private final String format;
+    private final Object[] args;
+    private final int line;
+    private String message = null;
+
+    // The calls in progress, innermost last, and the lines they were made on
+    private final NodeTerm.Call[] calls;
+    private final int[] lines;
+
+    public SmgException(int line, String format, Object... args) {
+        this(line, null, null, format, args);
+    }
+
+    SmgException(
+        int line, NodeTerm.Call[] calls, int[] lines,
+        String format, Object... args
+    ) {
+        super(null, null, true, JAVA_STACK_TRACES);
+        this.line = line;
+        this.calls = calls;
+        this.lines = lines;
+        this.format = format;
+        this.args = args;
+    }
+
+    // The line of the script the error happened on, or 0 if it is not known.
+    public int getLine() { return line; }
+
+    public String getMessage() {
+        if (message == null) {
+            final String text = args.length == 0 ?
+                format : String.format(format, args);
+            message = line > 0 ? text + " (line: " + line + ")" : text;
+        }
+        return message;
+    }
+
+    /**
+     * Where in the script the error happened, innermost call first. Each
+     * entry names the function that was running and the line it was on:
+     * <pre>
+     * at area (line: 4)
+     * at &lt;script&gt; (line: 12)
+     * </pre>
+     */
+    public List<String> getScriptStackTrace() {
+        final List<String> trace = new ArrayList<>();
+        if (calls == null) return trace;
+
+        int at = line;
+        for (int i = calls.length - 1; i >= 0; i -= 1) {
+            trace.add("at " + calls[i].f + " (line: " + at + ")");
+            at = lines[i];
+        }
+        trace.add("at <script> (line: " + at + ")");
+        return trace;
+    }
+}
@@ -0,0 +1,13 @@
+package smg.interpreter;
+
+/**
+ * An error in the text of a script, found by the Tokeniser or the Parser
+ * before any of it runs.
+ */
+public class SmgSyntaxException extends SmgException {
+    private static final long serialVersionUID = 1L;
+
+    public SmgSyntaxException(int line, String format, Object... args) {
+        super(line, format, args);
+    }
+}
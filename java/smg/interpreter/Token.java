@@ -1,7 +1,9 @@
 package smg.interpreter;
 
 import java.lang.reflect.Field;
+import java.util.EnumMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 
 /*
@@ -189,8 +191,16 @@ public class Token {
         value = val; prec = p; rassoc = r; types = Set.copyOf(ts);
     }
 
+    // Made tokens only ever have one type, so they share one set per type.
+    private static final Map<TokenType, Set<TokenType>> typeSets = 
+        new EnumMap<>(TokenType.class);
+    static {
+        for (TokenType type : TokenType.values()) 
+            typeSets.put(type, Set.of(type));
+    }
+
     static Token make(String name, TokenType type) {
-        return new Token(name, type);
+        return new Token(name, typeSets.get(type), 0, false);
     }
 
     // HELPERS
@@ -1,5 +1,6 @@
 package smg.interpreter;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 
 /**
@@ -57,149 +58,183 @@ import java.util.LinkedList;
  */
 public class Tokeniser {
 
-    // Current location of the Tokeniser on the progam string
-    private int loc = 0;
+    // Current location of the Tokeniser on the progam string, and the line 
+    // that location is on
+    private int loc = 0, line = 1;
 
-    // The program which contains all of our instructions
+    // The program which contains all of our instructions. It is scanned as an
+    // array of characters, and only the parts of it that become the values of
+    // indefinite tokens are ever turned back into strings.
     private final String program;
-    public Tokeniser(String input) { program = input; }
-    
-    // Tokenisation states
-    private final int 
-        WAITING = 0, 
-        S_STR_LIT = 1, 
-        D_STR_LIT = 2, 
-        COMMENT = 3, 
-        NUMBER = 4, 
-        WORD = 5;
+    private final char[] chars;
+    public Tokeniser(CharSequence input) { 
+        program = input.toString(); 
+        chars = program.toCharArray();
+    }
+
+    /*
+     * Offset-based Lexing
+     * 
+     * scan() moves past the next token without building it. What was found is
+     * described by the offsets of its value in the program, and either the 
+     * definite token matched or the type of the indefinite token. Nothing is
+     * allocated while scanning; text() builds the value of an indefinite token
+     * when it is actually needed.
+     */
+    private int start = 0, end = 0;
+    private Token definite = null;
+    private TokenType type = null;
+
+    // Scan the next token. Returns false once the End of Tokens is reached.
+    public boolean scan() {
+        definite = null;
+        type = null;
+        while (peek() != Token.EOF) {
+            start = loc;
+
+            // Attempt to consume a definite token
+            final Token token = tryConsume();
+
+            // If the token read indicates the start of a string or a comment,
+            // its value starts after it.
+            if (token == Token.SingleQuote || token == Token.DoubleQuote) {
+                start = loc;
+                scanString(token);
+                type = TokenType.StringLiteral;
+                return true;
+            }
+            else if (token == Token.Hashtag) {
+                start = loc;
+                if (peek() == Token.EOF) break;
+                scanComment();
+                type = TokenType.Comment;
+                return true;
+            }
+
+            // Otherwise, if the token read is not null, it is the next Token.
+            else if (token != null) {
+                if (token == Token.Newline) line += 1;
+                definite = token;
+                end = loc;
+                return true;
+            }
+
+            // Otherwise, it may be a Qualifier or a Number Literal.
+            else if ((type = scanWord()) != null) return true;
+
+            // Otherwise, if token is a space and can be ignored.
+            else if (space(peek())) consume();
+
+            // If no character can be identified, throw error.
+            // Likely unreachable.
+            else throw error("Invalid token: %s", peek());
+        }
+
+        // No more tokens can be found, and an End of Tokens token is returned.
+        start = end = loc;
+        definite = Token.EOT;
+        return false;
+    }
+
+    // Where the value of the last token scanned starts and ends
+    public int start() { return start; }
+    public int end() { return end; }
+
+    // The line the tokeniser is on after the last token scanned. Only new 
+    // lines and comments can move it on to the next line.
+    public int line() { return line; }
+
+    // The definite token last scanned, or null if it was indefinite
+    public Token definite() { return definite; }
+
+    // The type of the indefinite token last scanned, or null if it was definite
+    public TokenType type() { return type; }
+
+    // The value of the token last scanned
+    public String text() {
+        if (definite != null) return definite.value;
+        if (type != TokenType.StringLiteral) 
+            return new String(chars, start, end - start);
+
+        // Only string literals with escapes need to be built up.
+        int i = start;
+        while (i < end && chars[i] != '\\') i += 1;
+        if (i == end) return new String(chars, start, end - start);
+
+        final StringBuilder buffer = new StringBuilder(end - start);
+        buffer.append(chars, start, i - start);
+        for (; i < end; i += 1) {
+            if (chars[i] == '\\') buffer.append(unescape(chars[++i]));
+            else buffer.append(chars[i]);
+        }
+        return buffer.indexOf("\\") < 0 ? 
+            buffer.toString() : 
+            escape(buffer.toString());
+    }
 
     // Get next token
     public Token nextToken() {
+        return !scan() ? Token.EOT : 
+            definite != null ? definite : 
+            Token.make(text(), type);
+    }
 
-        // Buffer stores a sequence of characters which would later become 
-        // literals, comments, etc.
-        final StringBuffer buffer = new StringBuffer();
-
-        // Initial state is waiting
-        int state = WAITING;
-        boolean escape = false;
-        while (peek() != Token.EOF || buffer.length() > 0) {
-            switch (state) {
-
-                // Building a String Literal
-                case S_STR_LIT:
-                case D_STR_LIT:
-
-                    // Strings must end in the correct token.
-                    if (escape) {
-                        escape = false;
-                        switch (peek()) {
-                            case '"': buffer.append('"'); break;
-                            case '\\': buffer.append('\\'); break;
-                            case '\'': buffer.append('\''); break;
-                            case 'n': buffer.append('\n'); break;
-                            case 'b': buffer.append('\b'); break;
-                            case 'r': buffer.append('\r'); break;
-                            case 't': buffer.append('\t'); break;
-                            case 'f': buffer.append('\f'); break;
-                            case '0': buffer.append('\0'); break;
-                        
-                            default: throw error(
-                                "Unrecognised escape character: \\%s", peek());
-                        }
-                        consume();
-                        continue;
-                    } 
-                    else if (tryConsume(Token.BackSlash)) {
-                        escape = true;
-                        continue;
-                    }
-                    else if ((state == S_STR_LIT && tryConsume(Token.SingleQuote)) ||
-                        (state == D_STR_LIT && tryConsume(Token.DoubleQuote))) {
-
-                        final String value = escape(buffer.toString());
-                        buffer.setLength(0);
-                        return Token.make(value, TokenType.StringLiteral);
-                    }
-
-                    // Forbid multiline strings in source code
-                    else if (tryConsume(Token.Newline)) 
-                        throw error("Unexpected new line in string literal");
-                    
-                    // Otherwise, everything encountered is part of the string.
-                    buffer.append(consume());
-                    break;
-                
-                // Building a Comment
-                case COMMENT: {
-
-                    // Everything proceeding a hashtag '#' becomes is included.
-                    final Token token = tryConsume();
-                    buffer.append(token == null ? consume() : token.value);
-                    
-                    // End the comment if it ends in a new line
-                    if (token == Token.Newline || peek() == Token.EOF) 
-                        return Token.make(buffer.toString(), TokenType.Comment);
-                    
-                    break;
-                }
-
-                // Waiting for tokens
-                case WAITING: 
-
-                    // Attempt to consume a definite token
-                    final Token token = tryConsume();
-
-                    // If the token read indicates the start of a string or a 
-                    // comment, set the state accordingly
-                    state = token == Token.SingleQuote ? S_STR_LIT :
-                            token == Token.DoubleQuote ? D_STR_LIT :
-                            token == Token.Hashtag ? COMMENT : state;
-
-                    if (state != WAITING) break;
-
-                    // Otherwise, if the token read is not null, it is returned
-                    // as the next Token.
-                    else if (token != null) return token;
-
-                    // Otherwise, our Token needs to be build up.
-                    
-                // Building a Qualifier or Keyword
-                case WORD:
-                    if (peek() == '_' || alpha(peek()) || 
-                        (state == WORD && numeric(peek()))) {
-                        buffer.append(consume()); 
-                        state = WORD;
-                        break;
-                    }
-                    
-                // Building a Number Literal
-                case NUMBER:
-                    if (numeric(peek()) || (state == NUMBER && peek() == '.')) {
-                        buffer.append(consume());
-                        state = NUMBER;
-                        break;
-                    }
-
-                // Building Complete
-                default:
-
-                    // Buffer full = Literal ready to be tokenised
-                    if (buffer.length() > 0) 
-                        return Token.make(buffer.toString(), state == NUMBER ? 
-                            TokenType.NumberLiteral : TokenType.Qualifier);
-
-                    // Otherwise, if token is a space and can be ignored.
-                    else if (space(peek())) consume();
-                    
-                    // If no character can be identified, throw error.
-                    // Likely unreachable.
-                    else throw error("Invalid token: %s", peek());
+    // Scan the rest of a String Literal, up to its closing quote.
+    private void scanString(Token quote) {
+        while (true) {
+            if (loc == chars.length) 
+                throw error("Unterminated string literal");
+
+            // Escapes are checked here but only applied by text().
+            else if (chars[loc] == '\\') {
+                loc += 1;
+                if (loc == chars.length || 
+                    (unescape(chars[loc]) == 0 && chars[loc] != '0')) 
+                    throw error("Unrecognised escape character: \\%s", peek());
+                loc += 1;
             }
+
+            // Strings must end in the correct token.
+            else if (chars[loc] == quote.value.charAt(0)) {
+                end = loc;
+                loc += 1;
+                return;
+            }
+
+            // Forbid multiline strings in source code
+            else if (chars[loc] == '\n') 
+                throw error("Unexpected new line in string literal");
+
+            // Otherwise, everything encountered is part of the string.
+            else loc += 1;
         }
+    }
 
-        // No more tokens can be found, and an End of Tokens token is returned.
-        return Token.EOT;
+    // Scan the rest of a Comment. Everything proceeding a hashtag '#' is 
+    // included, up to and including the new line that ends it.
+    private void scanComment() {
+        char c;
+        while ((c = consume()) != '\n' && peek() != Token.EOF);
+        if (c == '\n') line += 1;
+        end = loc;
+    }
+
+    // Scan a Qualifier or Number Literal, whichever the first character starts.
+    private TokenType scanWord() {
+        TokenType type = null;
+        while (true) {
+            final char c = peek();
+            if (type != TokenType.NumberLiteral && (c == '_' || alpha(c) || 
+                (type == TokenType.Qualifier && numeric(c)))) 
+                type = TokenType.Qualifier;
+            else if (numeric(c) || (type == TokenType.NumberLiteral && c == '.'))
+                type = TokenType.NumberLiteral;
+            else break;
+            consume();
+        }
+
+        end = loc;
+        return type;
     }
 
     // Collect all tokens into a list for convenience
@@ -234,69 +269,111 @@ public class Tokeniser {
     // Peek ahead of the current character by a certain amount. Return EOF if we
     // reach the end.
     private char peek(int offset) {
-        return loc + offset == program.length() ? 
-            Token.EOF : 
-            program.charAt(loc + offset);
-    }
-
-    // Peek a consumable of fixed length. Return EOF if we reach the end.
-    private String peekLots(int amount) {
-        return loc + amount > program.length() ? 
-            String.valueOf(Token.EOF) : 
-            program.substring(loc, loc + amount);
+        return loc + offset == chars.length ? Token.EOF : chars[loc + offset];
     }
 
     // Consume the next consumable if it exactly matches the value of a definite
-    // token. The biggest token that matches the consumable wins.
+    // token. The biggest token that matches the consumable wins. All definite
+    // tokens are matched at once by following the characters of the program 
+    // down the token trie.
     private Token tryConsume() {
-        String c = ""; Token best = null;
-        for (Token token : Token.tokenList) {
-            final int len = token.value.length(),
-            blen = best == null ? 0 : best.value.length();
-
-            if (len != c.length()) c = peekLots(len);
-            if (c.equals(token.value) && len > blen) {
-
-                // If the matched token is a keyword, make sure it isn't 
-                // followed by a valid qualifier character
-                if (token.isAny(TokenType.Keyword) && (
-                    alpha(peek(len)) || 
-                    numeric(peek(len)) || 
-                    peek(len) == '_'
-                )) continue;
-
-                best = token;
-            }
+        Token best = null;
+        Trie node = Trie.root;
+        for (int len = 1; (node = node.next(peek(len - 1))) != null; len += 1) {
+            if (node.token == null) continue;
+
+            // If the matched token is a keyword, make sure it isn't followed 
+            // by a valid qualifier character
+            if (node.keyword && (
+                alpha(peek(len)) || 
+                numeric(peek(len)) || 
+                peek(len) == '_'
+            )) continue;
+
+            best = node.token;
         }
 
         if (best != null) consumeLots(best.value.length());
         return best;
     }
 
-    // Consume the next consumable if it exactly matches the value of the given
-    // token.
-    private boolean tryConsume(Token token) {
-        final boolean success;
-        if (success = peekLots(token.value.length()).equals(token.value)) 
-            consumeLots(token.value.length());
-        
-        return success;
-    }
-
     // Consume the current character. Return EOF at the end.
     private char consume() {
-        return loc == program.length() ? Token.EOF : program.charAt(loc++);
+        return loc == chars.length ? Token.EOF : chars[loc++];
     }
 
-    // Consume the next specified amount of characters. Return EOF at the end.
-    private String consumeLots(int amount) {
-        return loc + amount > program.length() ? 
-            String.valueOf(Token.EOF) : program.substring(loc, loc += amount);
+    // Skip over the next specified amount of characters, unless that would go
+    // past the end.
+    private void consumeLots(int amount) {
+        if (loc + amount <= chars.length) loc += amount;
+    }
+
+    /*
+     * Token Trie
+     * 
+     * A tree of all definite tokens, built once from Token.tokenList. Every 
+     * node stands for a sequence of characters, and holds the token with that
+     * value if there is one. Each node's children are kept in an array indexed
+     * by character, offset by the lowest character among them.
+     */
+    private static final class Trie {
+        static final Trie root = new Trie();
+        static {
+            for (Token token : Token.tokenList) {
+                Trie node = root;
+                for (char c : token.value.toCharArray()) node = node.add(c);
+                node.token = token;
+                node.keyword = token.isAny(TokenType.Keyword);
+            }
+        }
+
+        Token token = null;
+        boolean keyword = false;
+        private char base = 0;
+        private Trie[] children = new Trie[0];
+
+        Trie next(char c) {
+            final int i = c - base;
+            return i >= 0 && i < children.length ? children[i] : null;
+        }
+
+        private Trie add(char c) {
+            if (children.length == 0) base = c;
+            if (c < base) {
+                final Trie[] grown = new Trie[children.length + base - c];
+                System.arraycopy(
+                    children, 0, grown, base - c, children.length
+                );
+                children = grown; base = c;
+            }
+            else if (c - base >= children.length) {
+                children = Arrays.copyOf(children, c - base + 1);
+            }
+
+            if (children[c - base] == null) children[c - base] = new Trie();
+            return children[c - base];
+        }
     }
 
     // HELPERS
-    private RuntimeException error(String msg, Object... objects) {
-        return new RuntimeException(String.format(msg, objects));
+    private SmgSyntaxException error(String msg, Object... objects) {
+        return new SmgSyntaxException(line, msg, objects);
+    }
+
+    // The character an escape sequence stands for, or 0 if it is not one.
+    // '\0' itself is both.
+    private char unescape(char c) {
+        switch (c) {
+            case '"': return '"';
+            case '\\': return '\\';
+            case '\'': return '\'';
+            case 'n': return '\n';
+            case 'b': return '\b';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'f': return '\f';
+            default: return 0;
+        }
     }
 
     private String escape(String text) {
@@ -308,7 +385,7 @@ public class Tokeniser {
             .replaceAll("\\\\\'", "\'");
     }
     
-    public void reset() { loc = 0; }
+    public void reset() { loc = 0; line = 1; }
     public String toString() { return program; }
     private boolean numeric(char c) { return (c >= '0' && c <= '9'); }
     private boolean alpha(char c) { 
@@ -13,9 +13,15 @@ import java.util.Map;
  */
 public class Types {
     public static String javaType(Object object) {
+        if (object instanceof Rope) return "String";
         return object == null ? "null" : object.getClass().getSimpleName();
     }
 
+    // The value as it should be observed, with ropes flattened into strings
+    static Object flat(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
     static boolean ofAny(Object value, Class<?>... classes) {
         for (Class<?> c : classes) {
             if (c.isInstance(value)) return true;
@@ -57,6 +63,8 @@ public class Types {
 
     @SuppressWarnings("unchecked")
     static <R> R castValue(Interpreter intr, String type, Object value) {
+        value = flat(value);
+
         // First Sweep
         switch (type) {
             // If the target is a string, it handed by Java default
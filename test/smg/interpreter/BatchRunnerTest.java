@@ -0,0 +1,100 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+final class BatchRunnerTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    public static void main(String[] args) {
+        keepsInputOrder();
+        keepsErrorsApart();
+        setsUpEveryRun();
+        passed(BatchRunnerTest.class);
+    }
+
+    private static List<Map<String, Object>> inputs(int count) {
+        final List<Map<String, Object>> inputs = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) inputs.add(Map.of("n", (long) i));
+        return inputs;
+    }
+
+    private static void keepsInputOrder() {
+        final BatchRunner runner = new BatchRunner(
+            CompiledScript.from("let doubled = n * 2\ndoubled"), POOL
+        );
+        final List<BatchRunner.Result> results = runner.run(inputs(1000));
+        equal(1000, results.size());
+        for (int i = 0; i < results.size(); i += 1) {
+            check(!results.get(i).failed(), results.get(i).toString());
+            equal(2L * i, results.get(i).value());
+        }
+
+        // Lists without random access and streams are run the same way.
+        equal(results.toString(),
+            runner.run(new LinkedList<>(inputs(1000))).toString()
+        );
+        equal(results.toString(), runner.run(IntStream.range(0, 1000)
+            .mapToObj(i -> Map.<String, Object>of("n", (long) i))
+        ).toString());
+        equal(List.of(), runner.run(List.of()));
+    }
+
+    // Each failed run keeps its own error, and the runs around it still
+    // finish.
+    private static void keepsErrorsApart() {
+        final BatchRunner runner = new BatchRunner(CompiledScript.from(
+            "if (n % 10 == 3) { n.missing }\n" +
+            "let r = 100 / (n % 10 - 7)\n" +
+            "r"
+        ), POOL);
+        final List<BatchRunner.Result> results = runner.run(inputs(200));
+        for (int i = 0; i < results.size(); i += 1) {
+            final BatchRunner.Result result = results.get(i);
+            if (i % 10 == 3) {
+                check(result.error() instanceof SmgException,
+                    result.toString());
+                check(result.error().getMessage().contains("line: 1"),
+                    result.toString());
+            }
+            else if (i % 10 == 7) {
+                check(result.error() instanceof ArithmeticException,
+                    result.toString());
+            }
+            else {
+                check(!result.failed(), result.toString());
+                equal(100L / (i % 10 - 7), result.value());
+            }
+        }
+    }
+
+    // Setup runs on every interpreter before its run, including the ones
+    // that are reused from the pool.
+    private static void setsUpEveryRun() {
+        final BatchRunner runner = new BatchRunner(CompiledScript.from(
+            "let s = 0\n" +
+            "for (i in range(n)) { s += i }\n" +
+            "s + bonus"
+        ), POOL).setup(intr -> {
+            intr.setStepLimit(2000);
+            intr.setOrDefine("bonus", 1L);
+        });
+
+        final List<BatchRunner.Result> results = runner.run(List.of(
+            Map.of("n", 10L), Map.of("n", 100000L), Map.of("n", 3L)
+        ));
+        equal(46L, results.get(0).value());
+        check(results.get(1).error() instanceof LimitExceededException,
+            results.get(1).toString());
+        equal(4L, results.get(2).value());
+        for (BatchRunner.Result result : runner.run(inputs(100)))
+            check(!result.failed(), result.toString());
+    }
+}
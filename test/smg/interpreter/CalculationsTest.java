@@ -0,0 +1,42 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import java.util.List;
+import java.util.Map;
+
+final class CalculationsTest {
+
+    public static void main(String[] args) {
+        specialisesOperands();
+        rejectsMissingOperands();
+        passed(CalculationsTest.class);
+    }
+
+    // Nodes specialised on one type of operand give the same results as the
+    // generic path once they see another.
+    private static void specialisesOperands() {
+        final String code =
+            "let f = function(a, b) a + b\n" +
+            "let sums = [f(1, 2), f(1.5, 2), f('a', 1), f([1], 2), f(3, 4)]\n" +
+            "sums";
+        equal(List.of(3L, 3.5, "a1", List.of(1L, 2L), 7L), run(code));
+
+        final Map<String, Object> vars = Map.of("n", 2L);
+        equal(List.of(true, 6L, 1L), run(
+            "let a = [n > 1, n * 3, n - 1]\na", vars
+        ));
+        equal(false, run("let s = 'a'\ns == null"));
+    }
+
+    // The parser leaves out the right side of some malformed operators, which
+    // must still be reported as an error of the script.
+    private static void rejectsMissingOperands() {
+        final SmgException error = fails(SmgException.class,
+            () -> run("let a = 2\nlet b = 3\na ** b")
+        );
+        check(error.getMessage().startsWith(
+            "Invalid binary expression: (Long) * (null) (line: 3)"
+        ), error.getMessage());
+    }
+}
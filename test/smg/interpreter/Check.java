@@ -0,0 +1,58 @@
+package smg.interpreter;
+
+import java.util.Map;
+import java.util.Objects;
+
+/*
+ * Assertions shared by the tests. There is no build to run them with, so each
+ * test is a program of its own that throws on the first failed check. From
+ * the project directory:
+ *   javac -d out java/smg/interpreter/*.java test/smg/interpreter/*.java
+ *   java -cp out smg.interpreter.RopeTest
+ * The tests sit in the interpreter's package so they can check package
+ * private types, like Rope and PersistentMap, directly.
+ */
+final class Check {
+
+    private Check() {}
+
+    static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    static void equal(Object expected, Object actual) {
+        if (!Objects.equals(expected, actual)) throw new AssertionError(
+            "Expected " + describe(expected) + " but got " + describe(actual)
+        );
+    }
+
+    // Runs code that should throw, and returns what it threw.
+    static <T extends Throwable> T fails(Class<T> type, Runnable code) {
+        try { code.run(); }
+        catch (Throwable e) {
+            if (type.isInstance(e)) return type.cast(e);
+            throw new AssertionError("Expected " + type.getSimpleName() +
+                " but got " + e, e);
+        }
+        throw new AssertionError("Expected " + type.getSimpleName());
+    }
+
+    // Runs a script both compiled and tree-walked, which must agree.
+    static Object run(String code) { return run(code, Map.of()); }
+    static Object run(String code, Map<String, Object> vars) {
+        final Object compiled = CompiledScript.from(code).run(vars);
+        final Object walked = new Interpreter(code, vars).run();
+        equal(compiled, walked);
+        return compiled;
+    }
+
+    // Reports a test that passed.
+    static void passed(Class<?> test) {
+        System.out.println(test.getSimpleName() + " passed");
+    }
+
+    private static String describe(Object value) {
+        return value == null ? "null" :
+            value + " (" + value.getClass().getSimpleName() + ")";
+    }
+}
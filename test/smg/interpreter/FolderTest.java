@@ -0,0 +1,68 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import java.util.List;
+import java.util.Map;
+
+final class FolderTest {
+
+    public static void main(String[] args) {
+        foldsConstants();
+        foldsBranches();
+        copiesTemplates();
+        leavesErrorsForRuntime();
+        passed(FolderTest.class);
+    }
+
+    private static void foldsConstants() {
+        equal(86400L, run("60 * 60 * 24"));
+        equal(2.5, run("5 / 2.0"));
+        equal("ab1", run("'a' + 'b' + 1"));
+        equal(-3L, run("-(1 + 2)"));
+        equal(true, run("!(1 > 2)"));
+        equal(7L, run("let x = 7\nfalse or x"));
+        equal(false, run("let x = 7\nfalse and x"));
+    }
+
+    // Taken branches keep their own scope, and dropped ones never run.
+    private static void foldsBranches() {
+        equal(false, run("if (true) { let a = 1 }\nexists('a')"));
+        equal(1L, run("let a = 1\nif (false) { a = missing() }\na"));
+        equal(2L, run("let a = 1\nif (1 < 2) { a = 2 } else { a = 3 }\na"));
+    }
+
+    // Literals built up front are copied on every run, so that changes made
+    // to them by scripts or the host never show up in later runs.
+    @SuppressWarnings("unchecked")
+    private static void copiesTemplates() {
+        final CompiledScript script = CompiledScript.from(
+            "let l = [1, 2]\n" +
+            "let m = {a: 1}\n" +
+            "let first = [l[0], m.a]\n" +
+            "l[0] = 5\n" +
+            "m.a = 5\n" +
+            "let all = [first, l, m]\n" +
+            "all"
+        );
+        for (int run = 0; run < 2; run += 1) {
+            final List<Object> result = (List<Object>) script.run();
+            equal(List.of(1L, 1L), result.get(0));
+            equal(List.of(5L, 2L), result.get(1));
+            equal(Map.of("a", 5L), result.get(2));
+            ((List<Object>) result.get(1)).set(1, "host");
+            ((Map<String, Object>) result.get(2)).put("a", "host");
+        }
+    }
+
+    // Parsing never fails for expressions that only fail when run.
+    private static void leavesErrorsForRuntime() {
+        final CompiledScript script = CompiledScript.from("let a = 1\n1 / 0");
+        fails(ArithmeticException.class, script::run);
+
+        final SmgException error = fails(SmgException.class,
+            () -> run("let a = 1\n'a' - 1")
+        );
+        check(error.getMessage().contains("line: 2"), error.getMessage());
+    }
+}
@@ -0,0 +1,83 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+final class InteropTest {
+
+    public static void main(String[] args) {
+        callsOverloads();
+        raisesErrorsQuietly();
+        raisesErrorsOfCaller();
+        passed(InteropTest.class);
+    }
+
+    private static Interpreter integrated(String code) {
+        final Interpreter intr = new Interpreter(code);
+        intr.integrateClasses(Integer.class, Math.class);
+        return intr;
+    }
+
+    private static void callsOverloads() {
+        equal(List.of(12, 7, 3L, 2.5), integrated(
+            "let values = [\n" +
+            "    Integer.parseInt('12'),\n" +
+            "    Integer.valueOf('7'),\n" +
+            "    Math.max(2, 3),\n" +
+            "    Math.max(2.5, 1.0)\n" +
+            "]\n" +
+            "values"
+        ).run());
+    }
+
+    // Scripts are expected to catch failed calls, so they print nothing.
+    private static void raisesErrorsQuietly() {
+        final PrintStream err = System.err;
+        final ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(printed));
+        try {
+            final SmgException error = fails(SmgException.class,
+                () -> integrated("let a = 1\nInteger.parseInt('x')").run()
+            );
+            check(error.getMessage().startsWith(
+                "Invocation error: parseInt"
+            ), error.getMessage());
+            check(error.getMessage().contains("line: 2"), error.getMessage());
+        }
+        finally { System.setErr(err); }
+        equal("", printed.toString());
+    }
+
+    // Errors belong to the interpreter that made the call, with its line and
+    // call stack, rather than to the one that integrated the class.
+    @SuppressWarnings("unchecked")
+    private static void raisesErrorsOfCaller() {
+        final Interpreter owner = integrated("1");
+        owner.run();
+        final Object parse =
+            ((Map<String, Object>) owner.getGlobals().get("Integer"))
+                .get("parseInt");
+
+        final String code =
+            "function check(x) {\n" +
+            "    return parse(x)\n" +
+            "}\n" +
+            "check('1')\n" +
+            "parallel for (x in ['1', '2', 'x']) { check(x) }";
+        for (Interpreter intr : List.of(
+            CompiledScript.from(code).interpreter(Map.of("parse", parse)),
+            new Interpreter(code, Map.of("parse", parse))
+        )) {
+            intr.setForkJoinPool(new ForkJoinPool(2));
+            final SmgException error = fails(SmgException.class, intr::run);
+            check(error.getMessage().contains("line: 2"), error.getMessage());
+            check(error.getScriptStackTrace().toString().contains("check"),
+                "No script stack trace");
+        }
+    }
+}
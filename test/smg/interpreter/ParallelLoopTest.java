@@ -0,0 +1,248 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import smg.interpreter.Capture.F;
+
+final class ParallelLoopTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    public static void main(String[] args) {
+        collectsResults();
+        rejectsOuterAssignments();
+        assignsOwnVariables();
+        rejectsOuterChanges();
+        changesOwnContainers();
+        rebindsBuiltins();
+        propagatesErrors();
+        sharesStepLimit();
+        passed(ParallelLoopTest.class);
+    }
+
+    // Runs a script both compiled and tree-walked on a pool of four threads.
+    private static Object parallel(String code) {
+        final Interpreter compiled = CompiledScript.from(code).interpreter();
+        final Interpreter walked = new Interpreter(code);
+        compiled.setForkJoinPool(POOL);
+        walked.setForkJoinPool(POOL);
+        final Object result = compiled.run();
+        equal(result, walked.run());
+        return result;
+    }
+
+    private static SmgException error(String code) {
+        final SmgException compiled = fails(SmgException.class, () -> {
+            final Interpreter intr = CompiledScript.from(code).interpreter();
+            intr.setForkJoinPool(POOL);
+            intr.run();
+        });
+        final SmgException walked = fails(SmgException.class, () -> {
+            final Interpreter intr = new Interpreter(code);
+            intr.setForkJoinPool(POOL);
+            intr.run();
+        });
+        equal(compiled.getMessage(), walked.getMessage());
+        return compiled;
+    }
+
+    private static void collectsResults() {
+        equal(List.of(2L, 4L, 6L, 8L, 10L, 12L, 14L, 16L), parallel(
+            "parallel for (x in [1, 2, 3, 4, 5, 6, 7, 8]) { x * 2 }"
+        ));
+        equal(List.of(), parallel("parallel for (x in []) { x }"));
+    }
+
+    // Variables from outside the loop are shared by every thread.
+    private static void rejectsOuterAssignments() {
+        final String message =
+            "Cannot assign to variables from outside a parallel loop";
+        check(error("let total = 0\n" +
+            "parallel for (x in [1, 2]) { total += x }"
+        ).getMessage().startsWith(message), "Global assigned");
+        check(error("function f() {\n" +
+            "    let total = 0\n" +
+            "    parallel for (x in [1, 2]) { total = total + x }\n" +
+            "}\n" +
+            "f()"
+        ).getMessage().startsWith(message), "Local assigned");
+        check(error(
+            "let make = function() {\n" +
+            "    let n = 0\n" +
+            "    return function() { n += 1 }\n" +
+            "}\n" +
+            "let count = make()\n" +
+            "parallel for (x in [1, 2]) { count() }"
+        ).getMessage().startsWith(message), "Capture assigned");
+        check(error("parallel for (x in [1, 2]) { global('g') }")
+            .getMessage().startsWith(message), "Global defined");
+    }
+
+    private static void assignsOwnVariables() {
+        equal(List.of(3L, 6L), parallel(
+            "parallel for (x in [1, 2]) {\n" +
+            "    let sum = 0\n" +
+            "    for (i in range(3)) { sum += x }\n" +
+            "    let add = function(n) { sum = sum + n; return sum }\n" +
+            "    add(0)\n" +
+            "}"
+        ));
+        equal(3L, parallel(
+            "let totals = concurrentSum()\n" +
+            "parallel for (x in [1, 2]) { totals.add(x) }\n" +
+            "totals.get()"
+        ));
+
+        final SharedGlobals globals = new SharedGlobals(Map.of("last", 0L));
+        final Interpreter intr = CompiledScript.from(
+            "parallel for (x in [1, 1]) { last = x }"
+        ).interpreter(globals);
+        intr.setForkJoinPool(POOL);
+        intr.run();
+        equal(1L, globals.get("last"));
+    }
+
+    // Lists and maps from outside the loop are shared by every thread too,
+    // however they were made.
+    private static void rejectsOuterChanges() {
+        final String message =
+            "Cannot change lists or maps from outside a parallel loop";
+        check(error("let out = range(100).list()\n" +
+            "parallel for (i in range(100)) { out[i] = i }"
+        ).getMessage().startsWith(message), "List element changed");
+        check(error("let m = {n: 0}\n" +
+            "parallel for (x in [1, 2]) { m.n += x }"
+        ).getMessage().startsWith(message), "Map property changed");
+        check(error("let m = {}\n" +
+            "parallel for (x in ['a', 'b']) { m[x] = 1 }"
+        ).getMessage().startsWith(message), "Map key changed");
+        check(error("let make = function() [0]\n" +
+            "let l = make()\n" +
+            "parallel for (x in [1, 2]) { let own = l; own[0] = x }"
+        ).getMessage().startsWith(message), "Aliased list changed");
+        check(error("parallel for (x in [1, 2]) {\n" +
+            "    let l = [x]\n" +
+            "    parallel for (y in [1]) { l[0] = y }\n" +
+            "}"
+        ).getMessage().startsWith(message), "Enclosing list changed");
+
+        final Interpreter host = new Interpreter(
+            "parallel for (x in [1, 2]) { items[0] = x }",
+            Map.of("items", new ArrayList<>(List.of(0L)))
+        );
+        host.setForkJoinPool(POOL);
+        check(fails(SmgException.class, host::run).getMessage()
+            .startsWith(message), "Host list changed");
+    }
+
+    private static void changesOwnContainers() {
+        equal(List.of(List.of(1L, 0L), List.of(2L, 0L)), parallel(
+            "parallel for (x in [1, 2]) { let l = [0, 0]; l[0] = x; l }"
+        ));
+        equal(List.of(Map.of("a", 2L, "b", 1L), Map.of("a", 3L, "b", 2L)),
+            parallel(
+                "function make(x) {\n" +
+                "    let m = {a: x} + {b: x}\n" +
+                "    m.a += 1\n" +
+                "    return m\n" +
+                "}\n" +
+                "parallel for (x in [1, 2]) { make(x) }"
+            )
+        );
+        equal(List.of(List.of(1L, 1L), List.of(4L, 1L, 2L)), parallel(
+            "parallel for (x in [1, 2]) {\n" +
+            "    let l = range(x).list() + [x]\n" +
+            "    l[0] = x * x\n" +
+            "    l\n" +
+            "}"
+        ));
+    }
+
+    private static void rebindsBuiltins() {
+        equal(List.of(true, true), parallel(
+            "parallel for (x in [1, 2]) { let y = x; exists('y') }"
+        ));
+        equal(List.of(List.of(true), List.of(true)), parallel(
+            "parallel for (x in [1, 2]) {\n" +
+            "    parallel for (y in [x]) { let z = y; exists('z') }\n" +
+            "}"
+        ));
+    }
+
+    // The error of an item that failed is thrown from the loop, with the
+    // stack of the script around it. Only one item fails, as others that
+    // fail later may or may not have started by then.
+    private static void propagatesErrors() {
+        final SmgException error = error(
+            "function check(x) {\n" +
+            "    if (x == 3) { return x.missing }\n" +
+            "    return x\n" +
+            "}\n" +
+            "parallel for (x in range(0, 64)) { check(x) }"
+        );
+        check(error.getMessage().contains("of 3 "), error.getMessage());
+        check(error.getMessage().contains("line: 2"), error.getMessage());
+        check(error.getScriptStackTrace().toString().contains("check"),
+            "No script stack trace");
+
+        final SmgException sum = error(
+            "let totals = concurrentSum()\n" +
+            "function add(x) {\n" +
+            "    totals.add(x)\n" +
+            "}\n" +
+            "parallel for (x in [1, 'two']) { add(x) }"
+        );
+        check(sum.getMessage().startsWith(
+            "Cannot add a value of type String (line: 3)"
+        ), sum.getMessage());
+        check(sum.getScriptStackTrace().toString().contains("add"),
+            "No script stack trace");
+
+        check(error("parallel for (x in [1, 2]) { break }").getMessage()
+            .startsWith("Cannot break or return out of a parallel loop"),
+            "Break allowed");
+    }
+
+    // Workers stop once they have taken the steps left between them, rather
+    // than each taking all of them.
+    private static void sharesStepLimit() {
+        final AtomicLong ticks = new AtomicLong();
+        final Map<String, Object> vars = Map.of(
+            "tick", (F) a -> ticks.incrementAndGet()
+        );
+        final String code =
+            "let s = 0\n" +
+            "for (i in range(100)) { s += i }\n" +
+            "parallel for (x in range(4000)) {\n" +
+            "    parallel for (y in [x]) { tick() }\n" +
+            "}";
+        for (Interpreter intr : List.of(
+            CompiledScript.from(code).interpreter(vars),
+            new Interpreter(code, vars)
+        )) {
+            ticks.set(0);
+            intr.setForkJoinPool(POOL);
+            intr.setStepLimit(1000);
+            final LimitExceededException error =
+                fails(LimitExceededException.class, intr::run);
+            check(error.getMessage().startsWith("Step limit of 1000 exceeded"),
+                error.getMessage());
+            check(ticks.get() <= 300, ticks.get() + " ticks");
+        }
+
+        // Loops within the limit still run to the end.
+        final Interpreter intr = CompiledScript.from(
+            "parallel for (x in range(300)) { x }"
+        ).interpreter();
+        intr.setForkJoinPool(POOL);
+        intr.setStepLimit(301);
+        intr.run();
+        equal(301L, intr.getSteps());
+    }
+}
@@ -0,0 +1,136 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+final class PersistentMapTest {
+
+    public static void main(String[] args) {
+        collidesStrings();
+        collidesKeys();
+        sharesCopies();
+        matchesHashMap();
+        passed(PersistentMapTest.class);
+    }
+
+    // A key with whatever hash code a test needs
+    private static final class Key {
+        final int id, hash;
+        Key(int i, int h) { id = i; hash = h; }
+
+        public int hashCode() { return hash; }
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id;
+        }
+        public String toString() { return "Key(" + id + ", " + hash + ")"; }
+    }
+
+    // "Aa" and "BB" have the same hash code.
+    private static void collidesStrings() {
+        final PersistentMap map = new PersistentMap();
+        map.put("Aa", 1L);
+        map.put("BB", 2L);
+        map.put("AaAa", 3L);
+        map.put("BBBB", 4L);
+        map.put("AaBB", 5L);
+        equal(5, map.size());
+        equal(1L, map.get("Aa"));
+        equal(2L, map.get("BB"));
+        equal(5L, map.get("AaBB"));
+
+        equal(1L, map.remove("Aa"));
+        equal(null, map.get("Aa"));
+        equal(2L, map.get("BB"));
+        equal(null, map.remove("Aa"));
+        equal(4, map.size());
+    }
+
+    private static void collidesKeys() {
+        final PersistentMap map = new PersistentMap();
+        final Key a = new Key(1, 42), b = new Key(2, 42), c = new Key(3, 42);
+
+        // A key with another hash, whose lowest bits are the same, pushes the
+        // collision node down into a new node.
+        final Key d = new Key(4, 42 + (1 << 25));
+        for (Key key : List.of(a, b, c, d)) map.put(key, key.id);
+        equal(4, map.size());
+        for (Key key : List.of(a, b, c, d)) equal(key.id, map.get(key));
+
+        equal(2, map.put(b, 20));
+        equal(20, map.get(b));
+        equal(4, map.size());
+
+        map.remove(a);
+        map.remove(c);
+        equal(2, map.size());
+        check(!map.containsKey(a) && !map.containsKey(c), "Key not removed");
+        equal(20, map.get(b));
+        equal(4, map.get(d));
+        map.remove(b);
+        map.remove(d);
+        equal(0, map.size());
+        equal(Map.of(), map);
+
+        // Keys whose hashes share their lowest bits go several nodes deep.
+        for (int i = 0; i < 64; i += 1) map.put(new Key(i, i << 25), i);
+        for (int i = 0; i < 64; i += 1)
+            equal(i, map.get(new Key(i, i << 25)));
+        equal(64, map.size());
+    }
+
+    // Copies share nodes, so neither may see the other's changes.
+    private static void sharesCopies() {
+        final PersistentMap map = new PersistentMap();
+        for (int i = 0; i < 100; i += 1) map.put(new Key(i, i % 7), i);
+        final PersistentMap copy = map.copy();
+        final Map<Object, Object> before = new HashMap<>(map);
+
+        for (int i = 0; i < 100; i += 2) copy.remove(new Key(i, i % 7));
+        copy.put(new Key(1, 1), "changed");
+        equal(before, map);
+        equal(50, copy.size());
+        equal("changed", copy.get(new Key(1, 1)));
+
+        final PersistentMap plus = map.plus(Map.of(new Key(0, 0), "new"));
+        equal(0, map.get(new Key(0, 0)));
+        equal("new", plus.get(new Key(0, 0)));
+        equal(100, plus.size());
+    }
+
+    // Random puts and removes, with a few distinct hashes and plenty of
+    // collisions, must leave the same entries as a HashMap.
+    private static void matchesHashMap() {
+        final Random random = new Random(7);
+        final PersistentMap map = new PersistentMap();
+        final Map<Object, Object> expected = new HashMap<>();
+        final List<PersistentMap> copies = new ArrayList<>();
+        final List<Map<Object, Object>> snapshots = new ArrayList<>();
+
+        for (int i = 0; i < 20000; i += 1) {
+            final int id = random.nextInt(500);
+            final Object key = id == 0 ? null : new Key(id, id % 37 * 1024);
+            if (random.nextInt(3) == 0) {
+                equal(expected.remove(key), map.remove(key));
+            }
+            else {
+                equal(expected.put(key, i), map.put(key, i));
+            }
+            equal(expected.size(), map.size());
+
+            if (i % 2000 == 0) {
+                copies.add(map.copy());
+                snapshots.add(new HashMap<>(expected));
+            }
+        }
+
+        equal(expected, map);
+        equal(expected, new HashMap<>(map));
+        for (int i = 0; i < copies.size(); i += 1)
+            equal(snapshots.get(i), copies.get(i));
+    }
+}
@@ -0,0 +1,112 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import smg.interpreter.Capture.F;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+final class RopeTest {
+
+    public static void main(String[] args) {
+        concatenatesGlobals();
+        comparesRopes();
+        sharesBuffers();
+        flattensForHost();
+        passed(RopeTest.class);
+    }
+
+    // Globals are looked up by name, which must not flatten them in either
+    // mode, or building a string in one becomes quadratic again.
+    private static void concatenatesGlobals() {
+        final String code = String.join("\n",
+            "let s = ''",
+            "for (i in range(20000)) { s = s + 'piece' }",
+            "let copy = s",
+            "probe()",
+            "s.length"
+        );
+
+        final Interpreter compiled = CompiledScript.from(code).interpreter();
+        final Interpreter walked = new Interpreter(code);
+        for (Interpreter intr : List.of(compiled, walked)) {
+            final List<Object> seen = new ArrayList<>();
+            intr.defineVar("probe", (F) a -> seen.add(intr.variable("copy")));
+            equal(100000, intr.run());
+            check(seen.get(0) instanceof Rope, "Global was flattened");
+        }
+    }
+
+    private static final String LONG = "x".repeat(Rope.MIN_LENGTH);
+
+    // Ropes are equal to ropes with the same characters, and never to
+    // Strings, whichever side the comparison is made from.
+    private static void comparesRopes() {
+        final CharSequence a = Rope.concat(LONG, "a");
+        final CharSequence b = Rope.concat(Rope.concat(LONG, ""), "a");
+        final String flat = LONG + "a";
+
+        check(a instanceof Rope && b instanceof Rope, "Expected ropes");
+        equal(a, b);
+        equal(a.hashCode(), b.hashCode());
+        equal(flat, a.toString());
+        check(!a.equals(flat) && !flat.equals(a), "Rope equal to String");
+        check(Rope.concat("short", "er") instanceof String, "Short rope");
+    }
+
+    // Appending to an older rope must not change the newer one.
+    private static void sharesBuffers() {
+        final CharSequence base = Rope.concat(LONG, "");
+        final CharSequence newer = Rope.concat(base, "new");
+        final CharSequence older = Rope.concat(base, "old");
+
+        equal(LONG + "new", newer.toString());
+        equal(LONG + "old", older.toString());
+        equal(LONG, base.toString());
+        equal('w', newer.charAt(LONG.length() + 2));
+    }
+
+    // Long strings built by a script are Strings wherever the host finds them.
+    @SuppressWarnings("unchecked")
+    private static void flattensForHost() {
+        final String code = String.join("\n",
+            "let s = ''",
+            "for (i in range(300)) { s = s + 'piece' }",
+            "let m = {a: s}",
+            "m.b = s",
+            "m['c'] = s",
+            "let l = [s]",
+            "l[0] = s",
+            "shared = s",
+            "let q = sequence([s]).map(function(x) x + s).list()",
+            "let all = [s, l, m, l + s, m + {d: s}, q]",
+            "parallel for (x in [all]) { x + [s] }"
+        );
+
+        final SharedGlobals shared = new SharedGlobals(Map.of("shared", ""));
+        final Interpreter intr = CompiledScript.from(code)
+            .interpreter(shared);
+        final List<Object> result = (List<Object>) intr.run();
+        strings(result);
+        final Object first = ((List<Object>) result.get(0)).get(0);
+        equal(1500, ((String) first).length());
+        check(shared.get("shared") instanceof String, "Shared rope");
+
+        final Interpreter walked = new Interpreter(code);
+        walked.defineVar("shared", "");
+        strings(walked.run());
+        strings(walked.getGlobals());
+        check(walked.getVar("s") instanceof String, "getVar() rope");
+    }
+
+    // Checks that there are no ropes anywhere in a value.
+    private static void strings(Object value) {
+        check(!(value instanceof Rope), "Rope reached the host");
+        if (value instanceof List)
+            for (Object item : (List<?>) value) strings(item);
+        else if (value instanceof Map)
+            for (Object item : ((Map<?, ?>) value).values()) strings(item);
+    }
+}
@@ -0,0 +1,155 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class SequenceTest {
+
+    public static void main(String[] args) {
+        countsRanges();
+        stopsBeforeOverflowing();
+        rejectsInvalidRanges();
+        chainsLazily();
+        wrapsScriptIterators();
+        keepsHostVariables();
+        passed(SequenceTest.class);
+    }
+
+    private static void countsRanges() {
+        equal(List.of(0L, 1L, 2L), run("range(3).list()"));
+        equal(List.of(2L, 3L, 4L), run("range(2, 5).list()"));
+        equal(List.of(10L, 7L, 4L, 1L), run("range(10, 0, -3).list()"));
+        equal(List.of(), run("range(5, 0).list()"));
+        equal(List.of(), run("range(0, 5, -1).list()"));
+        equal(45L, run("let s = 0\nfor (i in range(10)) { s += i }\ns"));
+
+        // Loop variables over ranges can be reassigned and captured.
+        equal(List.of(1L, "a"), run(
+            "let fs = []\n" +
+            "for (i in range(2)) {\n" +
+            "    if (i == 1) { i = 'a' } else { i += 1 }\n" +
+            "    let j = i\n" +
+            "    fs = fs + [function() j]\n" +
+            "}\n" +
+            "let called = [fs[0](), fs[1]()]\n" +
+            "called"
+        ));
+    }
+
+    // Ranges end at their bounds, even when the next value would not fit in
+    // a long.
+    private static void stopsBeforeOverflowing() {
+        final long max = Long.MAX_VALUE, min = Long.MIN_VALUE;
+        final Map<String, Object> vars = Map.of("max", max, "min", min);
+        equal(List.of(max - 5, max - 1), run("range(max - 5, max, 4).list()",
+            vars
+        ));
+        equal(List.of(max - 1), run("range(max - 1, max).list()", vars));
+        equal(List.of(min + 5, min + 1), run(
+            "range(min + 5, min, -4).list()", vars
+        ));
+        equal(List.of(min, min + max, max - 1), run(
+            "range(min, max, max).list()", vars
+        ));
+        equal(List.of(max, -1L), run("range(max, min, min).list()", vars));
+    }
+
+    private static void rejectsInvalidRanges() {
+        final SmgException step = fails(SmgException.class,
+            () -> run("let a = 1\nrange(1, 2, 0)")
+        );
+        check(step.getMessage().startsWith("Range step cannot be 0 (line: 2)"),
+            step.getMessage());
+
+        final SmgException bound = fails(SmgException.class,
+            () -> run("function f() {\n    range(1.5)\n}\nf()")
+        );
+        check(bound.getMessage().startsWith(
+            "Range bounds must be whole numbers, not Double (line: 2)"
+        ), bound.getMessage());
+        check(bound.getScriptStackTrace().toString().contains("f"),
+            "No script stack trace");
+
+        fails(SmgException.class, () -> run("range(3).take('a')"));
+        fails(SmgException.class, () -> run("range(3).missing"));
+        fails(SmgException.class, () -> run("range()"));
+    }
+
+    // Functions are only called for the values that are taken, and every
+    // pass through a sequence starts over.
+    private static void chainsLazily() {
+        equal(List.of(List.of(0L, 9L, 36L), 7L), run(
+            "let calls = {n: 0}\n" +
+            "let squares = range(0, 1000000)\n" +
+            "    .filter(function(x) { calls.n += 1; return x % 3 == 0 })\n" +
+            "    .map(function(x) x * x)\n" +
+            "    .take(3)\n" +
+            "let taken = [squares.list(), calls.n]\n" +
+            "taken"
+        ));
+        equal(List.of(List.of(0L, 1L), List.of(0L, 1L)), run(
+            "let s = range(2)\nlet twice = [s.list(), s.list()]\ntwice"
+        ));
+        equal(List.of(2L, 3L), run(
+            "sequence([1, 2]).map(function(x) x + 1).list()"
+        ));
+        equal(List.of(), run("range(10).take(0).list()"));
+    }
+
+    private static void wrapsScriptIterators() {
+        equal(List.of(10L, 20L, 30L), run(
+            "let state = {n: 0}\n" +
+            "let counter = {\n" +
+            "    hasNext: function() state.n < 3,\n" +
+            "    next: function() { state.n += 1; return state.n }\n" +
+            "}\n" +
+            "let out = []\n" +
+            "for (x in sequence(counter).map(function(x) x * 10)) {\n" +
+            "    out = out + [x]\n" +
+            "}\n" +
+            "out"
+        ));
+    }
+
+    // Builtins never replace variables the host has given the same names,
+    // however the script is run.
+    private static void keepsHostVariables() {
+        final Map<String, Object> vars = Map.of(
+            "range", "host", "sequence", 1L, "concurrentSum", 2L
+        );
+        final String code = "let names = [range, sequence, concurrentSum]\n" +
+            "names";
+        final List<Object> expected = List.of("host", 1L, 2L);
+        final CompiledScript script = CompiledScript.from(code);
+
+        equal(expected, run(code, vars));
+        final InterpreterPool pool = new InterpreterPool(script, 1);
+        equal(expected, pool.run(vars));
+        equal(expected, pool.run(vars));
+        equal(expected, script.interpreter(new SharedGlobals(vars)).run());
+
+        // Scripts can still declare variables named like builtins.
+        equal(3L, run("let range = 3\nrange"));
+
+        // The original builtins replace host variables, and are defined again
+        // on every run of the same interpreter.
+        final Map<String, Object> types = Map.of("type", "host");
+        equal("Long", run("type(1)", types));
+        final InterpreterPool typing =
+            new InterpreterPool(CompiledScript.from("type(1)"), 1);
+        equal("Long", typing.run(types));
+        equal("Long", typing.run(types));
+        final Map<String, Object> was = new HashMap<>();
+        was.put("was", null);
+        final Interpreter intr = new Interpreter(
+            "was = type(1)\ntype = 'script'", was
+        );
+        for (int run = 0; run < 2; run += 1) {
+            intr.run();
+            equal("Long", intr.getVar("was"));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package smg.interpreter;
+
+import static smg.interpreter.Check.*;
+
+import smg.interpreter.Capture.F;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+final class SharedGlobalsTest {
+
+    private static final int THREADS = 8, WRITES = 2000;
+
+    public static void main(String[] args) throws Exception {
+        keepsConcurrentWrites();
+        sharesBetweenScripts();
+        snapshots();
+        isolatesRuns();
+        passed(SharedGlobalsTest.class);
+    }
+
+    // Runs the task on every thread at once and waits for all of them.
+    private static void concurrently(Task task) throws Exception {
+        final ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < THREADS; t += 1) {
+            final int thread = t;
+            done.add(threads.submit(() -> {
+                start.await();
+                task.run(thread);
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : done) future.get(60, TimeUnit.SECONDS);
+        threads.shutdown();
+    }
+
+    private interface Task { void run(int thread) throws Exception; }
+
+    // Writes that race each other retry their compare-and-set, so none of
+    // them are lost.
+    private static void keepsConcurrentWrites() throws Exception {
+        final SharedGlobals globals = new SharedGlobals();
+        concurrently(thread -> {
+            for (int i = 0; i < WRITES; i += 1) {
+                globals.put(thread + ":" + i, (long) i);
+                if (i % 2 == 1) globals.remove(thread + ":" + (i - 1));
+            }
+            globals.putAll(Map.of("last" + thread, (long) thread));
+        });
+
+        equal(THREADS * (WRITES / 2 + 1), globals.size());
+        for (int t = 0; t < THREADS; t += 1) {
+            equal((long) t, globals.get("last" + t));
+            for (int i = 1; i < WRITES; i += 2)
+                equal((long) i, globals.get(t + ":" + i));
+        }
+    }
+
+    private static void sharesBetweenScripts() throws Exception {
+        final SharedGlobals globals = new SharedGlobals(Map.of("seen", 0L));
+        final CompiledScript script = CompiledScript.from(
+            "global(name)\n" +
+            "seen"
+        );
+        concurrently(thread -> {
+            for (int i = 0; i < WRITES / 10; i += 1) {
+                final Map<String, Object> vars = new HashMap<>();
+                vars.put("name", "t" + thread + "_" + i);
+                final Interpreter intr = new Interpreter(script, vars, globals);
+                equal(0L, intr.run());
+            }
+        });
+        equal(1 + THREADS * (WRITES / 10), globals.size());
+        check(globals.containsKey("t0_0"), "Global not defined");
+        fails(UnsupportedOperationException.class,
+            () -> globals.entrySet().clear()
+        );
+    }
+
+    private static void snapshots() {
+        final SharedGlobals globals = new SharedGlobals(Map.of("a", 1L));
+        final Map<String, Object> snapshot = globals.snapshot();
+        globals.put("a", 2L);
+        snapshot.put("b", 3L);
+        equal(Map.of("a", 1L, "b", 3L), snapshot);
+        equal(Map.of("a", 2L), new HashMap<>(globals));
+    }
+
+    // Isolated runs see the globals as they started, publish only the
+    // variables they changed, and publish nothing if they throw.
+    private static void isolatesRuns() throws Exception {
+        final SharedGlobals globals = new SharedGlobals(
+            Map.of("a", 1L, "b", 1L), true
+        );
+        check(globals.isIsolated(), "Not isolated");
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch changed = new CountDownLatch(1);
+        final Map<String, Object> vars = new HashMap<>();
+        vars.put("pause", (F) a -> {
+            started.countDown();
+            try { changed.await(); }
+            catch (InterruptedException e) { throw new RuntimeException(e); }
+            return null;
+        });
+        final Interpreter isolated = new Interpreter(
+            CompiledScript.from("a = 2\npause()\nlet seen = [a, b]\nseen"),
+            vars, globals
+        );
+
+        final ExecutorService thread = Executors.newSingleThreadExecutor();
+        final Future<Object> run = thread.submit(isolated::run);
+        started.await();
+        equal(1L, globals.get("a"));
+        globals.put("b", 5L);
+        changed.countDown();
+        equal(List.of(2L, 1L), run.get(60, TimeUnit.SECONDS));
+        thread.shutdown();
+        equal(2L, globals.get("a"));
+        equal(5L, globals.get("b"));
+
+        final Interpreter failing = new Interpreter(
+            CompiledScript.from("a = 3\nb = 3\nmissing()"), vars, globals
+        );
+        fails(SmgException.class, failing::run);
+        equal(2L, globals.get("a"));
+        equal(5L, globals.get("b"));
+    }
+}